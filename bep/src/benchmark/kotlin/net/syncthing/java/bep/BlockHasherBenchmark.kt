@@ -0,0 +1,87 @@
+package net.syncthing.java.bep
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+import java.util.*
+
+/**
+ * Measures the hashing throughput of [BlockHasher] for 1, 2, 4, ... threads up to twice the number of processors,
+ * against hashing each block in turn on the calling thread as before, and checks that all produce the same hashes.
+ *
+ * Arguments: file size in MiB (default 512), block size in KiB (default 128) and number of rounds (default 3). The
+ * file is random data in the temporary directory, read from the page cache after the first round.
+ */
+object BlockHasherBenchmark {
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val fileSizeMiB = args.getOrNull(0)?.toInt() ?: 512
+        val blockSize = (args.getOrNull(1)?.toInt() ?: 128) * 1024
+        val rounds = args.getOrNull(2)?.toInt() ?: 3
+        val processors = Runtime.getRuntime().availableProcessors()
+        println("$processors processors, $fileSizeMiB MiB file, ${blockSize / 1024} KiB blocks")
+        val file = createFile(fileSizeMiB)
+        try {
+            FileUploadSource(file).use { source ->
+                val reference = hashSequentially(source, blockSize)
+                println("sequential: %.0f MiB/s".format(measure(fileSizeMiB, rounds, { hashSequentially(source, blockSize) })))
+                var singleThreadRate = 0.0
+                var threads = 1
+                while (threads <= 2 * processors) {
+                    val blockHasher = BlockHasher(threads)
+                    var hashes: List<ByteArray> = emptyList()
+                    val rate = measure(fileSizeMiB, rounds, { hashes = blockHasher.hashBlocks(source, blockSize) })
+                    if (threads == 1) {
+                        singleThreadRate = rate
+                    }
+                    val isSame = hashes.size == reference.size && hashes.zip(reference).all { Arrays.equals(it.first, it.second) }
+                    println("%d threads: %.0f MiB/s, %.2fx of 1 thread, same hashes = %s".format(threads, rate,
+                            rate / singleThreadRate, isSame))
+                    threads *= 2
+                }
+            }
+        } finally {
+            file.delete()
+        }
+    }
+
+    private fun createFile(sizeMiB: Int): File {
+        val file = File.createTempFile("block-hasher-benchmark", ".bin")
+        val random = Random(1)
+        val buffer = ByteArray(1024 * 1024)
+        RandomAccessFile(file, "rw").use { randomAccessFile ->
+            repeat(sizeMiB) {
+                random.nextBytes(buffer)
+                randomAccessFile.write(buffer)
+            }
+        }
+        return file
+    }
+
+    /**
+     * Hashes one block after the other on the calling thread, as uploads did before [BlockHasher].
+     */
+    private fun hashSequentially(source: UploadSource, blockSize: Int): List<ByteArray> {
+        val hashes = mutableListOf<ByteArray>()
+        var offset = 0L
+        while (offset < source.size) {
+            val size = Math.min(source.size - offset, blockSize.toLong()).toInt()
+            val digest = MessageDigest.getInstance("SHA-256")
+            digest.update(source.read(offset, size))
+            hashes.add(digest.digest())
+            offset += size
+        }
+        return hashes
+    }
+
+    /**
+     * Runs [hash] once to warm up, then [rounds] times, and returns the average MiB per second.
+     */
+    private fun measure(sizeMiB: Int, rounds: Int, hash: () -> Unit): Double {
+        hash()
+        val start = System.nanoTime()
+        repeat(rounds) { hash() }
+        return sizeMiB.toDouble() * rounds / ((System.nanoTime() - start) / 1e9)
+    }
+}
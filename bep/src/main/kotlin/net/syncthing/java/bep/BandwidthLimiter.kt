@@ -0,0 +1,12 @@
+package net.syncthing.java.bep
+
+/**
+ * Upload and download limits, shared by all connections it is passed to. Limits can be changed at any time. Both
+ * count application data, before encryption and after decryption.
+ */
+class BandwidthLimiter {
+
+    val upload = RateLimiter()
+
+    val download = RateLimiter()
+}
@@ -0,0 +1,242 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import net.syncthing.java.core.utils.BlockUtils
+import net.syncthing.java.core.utils.submitLogging
+import org.apache.commons.io.FileUtils
+import org.slf4j.LoggerFactory
+import java.io.*
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Content addressed store of verified blocks in [directory], which keeps the most recently used blocks up to
+ * [maxBytes]. Each block is stored in a file named after its hash, on a background thread. The order of use is
+ * written to an index file on [close]; the index is reconciled with the stored files when the cache is opened, so
+ * blocks survive an unclean shutdown as well.
+ */
+class BlockCache(private val directory: File, @Volatile var maxBytes: Long) : Closeable {
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+    // hash -> size, in order of use
+    private val blockSizes = LinkedHashMap<String, Int>(16, 0.75f, true)
+    private var cachedBytes = 0L
+    private var pendingBytes = 0L
+    private var isClosed = false
+    private val lock = Object()
+    private val writeExecutorService = Executors.newSingleThreadExecutor()
+
+    init {
+        directory.mkdirs()
+        loadIndex()
+        evict()
+    }
+
+    val size: Long
+        get() = synchronized(lock) { cachedBytes }
+
+    /**
+     * Returns the block with [hash], or null if it is not cached. Blocks which do not match their hash are removed.
+     */
+    fun get(hash: String): ByteBuffer? {
+        synchronized(lock) {
+            if (isClosed || blockSizes[hash] == null) {
+                return null
+            }
+        }
+        val data = try {
+            ByteBuffer.wrap(FileUtils.readFileToByteArray(blockFile(hash)))
+        } catch (ex: IOException) {
+            // evicted meanwhile
+            logger.debug("unable to read cached block {}", hash, ex)
+            null
+        }
+        if (data == null || BlockUtils.hashBlock(data) != hash) {
+            logger.warn("cached block {} is missing or corrupt, removing it", hash)
+            remove(hash)
+            return null
+        }
+        // keeps the order of use for a restart without index
+        blockFile(hash).setLastModified(System.currentTimeMillis())
+        return data
+    }
+
+    /**
+     * Stores [data], which must be verified against [hash] by the caller and not be modified afterwards, and evicts
+     * the least recently used blocks above [maxBytes]. The block is written in the background; it is dropped if too
+     * many blocks are waiting to be written already.
+     */
+    fun put(hash: String, data: ByteBuffer) {
+        val size = data.remaining()
+        synchronized(lock) {
+            if (isClosed || blockSizes[hash] != null || size > maxBytes || pendingBytes + size > MAX_PENDING_BYTES) {
+                return
+            }
+            pendingBytes += size
+            writeExecutorService.submitLogging {
+                try {
+                    write(hash, data)
+                } finally {
+                    synchronized(lock) {
+                        pendingBytes -= size
+                    }
+                }
+            }
+        }
+    }
+
+    private fun write(hash: String, data: ByteBuffer) {
+        val size = data.remaining()
+        synchronized(lock) {
+            if (blockSizes[hash] != null) {
+                return
+            }
+        }
+        val file = blockFile(hash)
+        var tempFile: File? = null
+        try {
+            tempFile = File.createTempFile(hash, TEMP_FILE_SUFFIX, directory)
+            FileOutputStream(tempFile).use { outputStream ->
+                val buffer = data.duplicate()
+                while (buffer.hasRemaining()) {
+                    outputStream.channel.write(buffer)
+                }
+            }
+            file.parentFile.mkdirs()
+            if (!tempFile.renameTo(file)) {
+                throw IOException("unable to rename $tempFile to $file")
+            }
+        } catch (ex: IOException) {
+            logger.warn("unable to cache block {}", hash, ex)
+            tempFile?.delete()
+            return
+        }
+        synchronized(lock) {
+            if (blockSizes.put(hash, size) == null) {
+                cachedBytes += size
+            }
+        }
+        evict()
+    }
+
+    private fun remove(hash: String) {
+        synchronized(lock) {
+            blockSizes.remove(hash)?.let { cachedBytes -= it }
+        }
+        blockFile(hash).delete()
+    }
+
+    private fun evict() {
+        val evictedHashes = mutableListOf<String>()
+        synchronized(lock) {
+            val iterator = blockSizes.entries.iterator()
+            while (cachedBytes > maxBytes && iterator.hasNext()) {
+                val entry = iterator.next()
+                iterator.remove()
+                cachedBytes -= entry.value
+                evictedHashes.add(entry.key)
+            }
+        }
+        evictedHashes.forEach { blockFile(it).delete() }
+        if (evictedHashes.isNotEmpty()) {
+            logger.debug("evicted {} blocks from block cache", evictedHashes.size)
+        }
+    }
+
+    private fun blockFile(hash: String) = File(File(directory, hash.substring(0, 2)), hash)
+
+    /**
+     * Restores the order of use from the index file, and adds the stored blocks missing from it, eg after an unclean
+     * shutdown, by modification time.
+     */
+    private fun loadIndex() {
+        val storedFiles = (directory.listFiles() ?: emptyArray())
+                .filter { it.isDirectory }
+                .flatMap { (it.listFiles() ?: emptyArray()).toList() }
+                .associateBy { it.name }
+        (directory.listFiles() ?: emptyArray())
+                .filter { it.name.endsWith(TEMP_FILE_SUFFIX) }
+                .forEach { it.delete() }
+        val indexFile = File(directory, INDEX_FILE_NAME)
+        if (indexFile.exists()) {
+            try {
+                DataInputStream(BufferedInputStream(FileInputStream(indexFile))).use { inputStream ->
+                    val count = inputStream.readInt()
+                    for (i in 0 until count) {
+                        val hash = inputStream.readUTF()
+                        val size = inputStream.readInt()
+                        if (storedFiles[hash]?.length() == size.toLong()) {
+                            blockSizes[hash] = size
+                        }
+                    }
+                }
+            } catch (ex: IOException) {
+                logger.warn("unable to read block cache index, rebuilding it", ex)
+                blockSizes.clear()
+            }
+            indexFile.delete()
+        }
+        storedFiles.values
+                .filter { !blockSizes.containsKey(it.name) }
+                .sortedBy { it.lastModified() }
+                .forEach { blockSizes[it.name] = it.length().toInt() }
+        cachedBytes = blockSizes.values.fold(0L, { sum, size -> sum + size })
+        logger.info("opened block cache with {} blocks, {}", blockSizes.size, FileUtils.byteCountToDisplaySize(cachedBytes))
+    }
+
+    private fun saveIndex() {
+        val indexFile = File(directory, INDEX_FILE_NAME)
+        val tempFile = File(directory, INDEX_FILE_NAME + TEMP_FILE_SUFFIX)
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tempFile))).use { outputStream ->
+                outputStream.writeInt(blockSizes.size)
+                for ((hash, size) in blockSizes) {
+                    outputStream.writeUTF(hash)
+                    outputStream.writeInt(size)
+                }
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                throw IOException("unable to rename $tempFile to $indexFile")
+            }
+        } catch (ex: IOException) {
+            logger.warn("unable to write block cache index", ex)
+            tempFile.delete()
+        }
+    }
+
+    /**
+     * Serves blocks from this cache to downloads.
+     */
+    internal fun asBlockSource(): BlockSource = object : BlockSource {
+        override fun readBlock(block: BlockInfo): ByteBuffer? = get(block.hash)?.takeIf { it.remaining() == block.size }
+    }
+
+    override fun close() {
+        synchronized(lock) {
+            if (isClosed) {
+                return
+            }
+            isClosed = true
+        }
+        writeExecutorService.shutdown()
+        try {
+            if (!writeExecutorService.awaitTermination(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("block cache writes did not finish in time")
+            }
+        } catch (ex: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        synchronized(lock) {
+            saveIndex()
+        }
+    }
+
+    companion object {
+        private const val INDEX_FILE_NAME = "index"
+        private const val TEMP_FILE_SUFFIX = ".tmp"
+        private const val MAX_PENDING_BYTES = 4L * BlockPusher.MAX_BLOCK_SIZE
+        private const val WRITE_TIMEOUT_SECONDS = 10L
+    }
+}
@@ -0,0 +1,305 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import net.syncthing.java.core.beans.FileBlocks
+import net.syncthing.java.core.utils.NetworkUtils
+import org.apache.commons.io.FileUtils
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * State of a single file download, which may be fed by the [BlockPuller]s of several connections at once.
+ *
+ * Pullers claim blocks from a shared queue whenever their request window has room, so faster peers claim more
+ * blocks. Blocks of a failed request or a detached puller are put back at the front of the queue for the remaining
+ * pullers.
+ */
+internal class BlockDownload(val fileBlocks: FileBlocks, private val blockSink: BlockSink,
+                             private val blockSources: List<BlockSource> = emptyList(),
+                             private val requestAllBlocks: Boolean = true) : BlockPuller.FileDownloadObserver() {
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val blocksByHash = fileBlocks.blocks.groupBy { it.hash }
+    private val missingHashes = HashSet(blocksByHash.keys)
+    private var receivedBytes = 0L
+    private val pendingBlocks = ArrayDeque<BlockInfo>()
+    private val requestedHashes = HashSet<String>()
+    private val pullers = mutableSetOf<BlockPuller>()
+    private val timeoutsByHash = mutableMapOf<String, Int>()
+    private val hedgePullersByHash = mutableMapOf<String, List<BlockPuller>>()
+    private var error: Exception? = null
+    private var isClosed = false
+    private val lock = Object()
+
+    /**
+     * Starts pulling from [blockPullers]. Blocks which the sink kept from an earlier download are skipped. If all
+     * blocks are to be requested, those available from the block sources are taken from there first.
+     */
+    @Throws(IOException::class)
+    fun start(blockPullers: List<BlockPuller>) {
+        NetworkUtils.assertProtocol(blockPullers.isNotEmpty(), {"no connection to pull ${fileBlocks.path} from"})
+        val storedHashes = blockSink.storedHashes()
+        val blocks = synchronized(lock) {
+            storedHashes.filter { missingHashes.remove(it) }.forEach { receivedBytes += hashBytes(it) }
+            if (missingHashes.isEmpty()) {
+                blockSink.commit()
+            }
+            if (requestAllBlocks) {
+                requestedHashes.addAll(missingHashes)
+            }
+            missingHashes.map { blocksByHash[it]!!.first() }
+        }
+        if (requestAllBlocks) {
+            queueBlocks(blocks)
+        }
+        synchronized(lock) {
+            pullers.addAll(blockPullers)
+        }
+        blockPullers.forEach { it.addDownload(this) }
+    }
+
+    /**
+     * Takes [blocks] from the block sources where possible, and queues the others for the pullers.
+     */
+    private fun queueBlocks(blocks: List<BlockInfo>) {
+        var missingBlocks = blocks
+        for (blockSource in blockSources) {
+            if (missingBlocks.isEmpty()) {
+                break
+            }
+            missingBlocks = blockSource.readBlocks(missingBlocks, { block, data -> onBlockReceived(block.hash, data) })
+        }
+        val pullersToWake = synchronized(lock) {
+            if (missingBlocks.isEmpty() || isClosed || error != null) {
+                return
+            }
+            pendingBlocks.addAll(missingBlocks)
+            pullers.toList()
+        }
+        pullersToWake.forEach { it.sendRequests() }
+    }
+
+    /**
+     * Takes the next block to request, or null if there is none right now.
+     */
+    fun claimBlock(): BlockInfo? = synchronized(lock) { pendingBlocks.pollFirst() }
+
+    /**
+     * Stores a received and verified block.
+     */
+    fun onBlockReceived(hash: String, data: ByteBuffer) {
+        val hedgePullers = synchronized(lock) {
+            if (isClosed || error != null || !missingHashes.contains(hash)) {
+                logger.warn("received not-needed block, hash = {}", hash)
+                return
+            }
+            try {
+                blocksByHash[hash]!!.forEach { blockSink.write(it, data.duplicate()) }
+                if (missingHashes.size == 1) {
+                    blockSink.commit()
+                }
+            } catch (ex: IOException) {
+                logger.error("error writing block", ex)
+                failLocked(ex)
+                return
+            }
+            missingHashes.remove(hash)
+            receivedBytes += hashBytes(hash)
+            requestedHashes.remove(hash)
+            logger.debug("aquired block, hash = {}", hash)
+            lock.notifyAll()
+            hedgePullersByHash.remove(hash)
+        }
+        hedgePullers?.forEach { it.cancelRequests(this, hash) }
+    }
+
+    /**
+     * Called when the request for [block] on [puller] is late. The block is requested from the fastest other
+     * connection as well, once.
+     */
+    fun hedgeRequest(puller: BlockPuller, block: BlockInfo) {
+        val otherPullers = synchronized(lock) {
+            if (isClosed || error != null || !missingHashes.contains(block.hash) || hedgePullersByHash.containsKey(block.hash)) {
+                return
+            }
+            pullers.filter { it != puller }
+        }
+        val candidates = if (otherPullers.isEmpty()) puller.failoverPullerSupplier(fileBlocks.folder) else otherPullers
+        val hedgePuller = candidates.minBy { it.roundTripTimeNanos } ?: return
+        synchronized(lock) {
+            if (!missingHashes.contains(block.hash) || hedgePullersByHash.containsKey(block.hash)) {
+                return
+            }
+            hedgePullersByHash[block.hash] = listOf(puller, hedgePuller)
+        }
+        logger.debug("hedging request for block {} of {}", block.hash, fileBlocks.path)
+        hedgePuller.sendHedgedRequest(this, block)
+    }
+
+    /**
+     * Queues those of [blocks] which are missing and not requested yet, for downloads that do not request all
+     * blocks.
+     */
+    fun requestBlocks(blocks: List<BlockInfo>) {
+        val newBlocks = synchronized(lock) {
+            checkError()
+            blocks.filter { missingHashes.contains(it.hash) && requestedHashes.add(it.hash) }
+        }
+        queueBlocks(newBlocks)
+    }
+
+    /**
+     * Marks a block, which was dropped by the sink, as missing again.
+     */
+    fun onBlockEvicted(hash: String) {
+        synchronized(lock) {
+            if (blocksByHash.containsKey(hash) && missingHashes.add(hash)) {
+                receivedBytes -= hashBytes(hash)
+            }
+        }
+    }
+
+    /**
+     * Waits until the block with [hash] has been received.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    fun waitForBlock(hash: String) {
+        synchronized(lock) {
+            while (missingHashes.contains(hash)) {
+                checkError()
+                NetworkUtils.assertProtocol(!isClosed, {"download of ${fileBlocks.path} closed"})
+                lock.wait()
+            }
+        }
+    }
+
+    /**
+     * Puts [block] back into the queue, to be requested again by any puller.
+     */
+    fun onRequestFailed(block: BlockInfo) {
+        val pullersToWake = synchronized(lock) {
+            if (isClosed || !missingHashes.contains(block.hash)) {
+                return
+            }
+            pendingBlocks.addFirst(block)
+            pullers.toList()
+        }
+        pullersToWake.forEach { it.sendRequests() }
+    }
+
+    /**
+     * Called when the request for [block] on [puller] got no response in time. The block is requested again, and
+     * if other connections share the folder, they take over the download from [puller].
+     */
+    fun onRequestTimedOut(puller: BlockPuller, block: BlockInfo) {
+        val attempts = synchronized(lock) {
+            if (isClosed || !missingHashes.contains(block.hash)) {
+                return
+            }
+            val attempts = (timeoutsByHash[block.hash] ?: 0) + 1
+            timeoutsByHash[block.hash] = attempts
+            if (attempts > puller.maxRequestRetries) {
+                failLocked(IOException("no response for block ${block.hash} of ${fileBlocks.path} after $attempts attempts"))
+                return
+            }
+            attempts
+        }
+        val failoverPullers = puller.failoverPullerSupplier(fileBlocks.folder)
+        val (addedPullers, isPullerReplaced) = synchronized(lock) {
+            val addedPullers = failoverPullers.filter { pullers.add(it) }
+            val isPullerReplaced = pullers.size > 1 && pullers.remove(puller)
+            Pair(addedPullers, isPullerReplaced)
+        }
+        logger.info("retrying block {} of {}, attempt {}, {} connection(s) added", block.hash, fileBlocks.path,
+                attempts + 1, addedPullers.size)
+        addedPullers.forEach { it.addDownload(this) }
+        if (isPullerReplaced) {
+            puller.removeDownload(this)
+        }
+        onRequestFailed(block)
+    }
+
+    /**
+     * Called when [puller] stopped serving this download, eg because its connection was closed.
+     */
+    fun onPullerDetached(puller: BlockPuller, reason: String) {
+        synchronized(lock) {
+            pullers.remove(puller)
+            if (pullers.isEmpty() && missingHashes.isNotEmpty() && !isClosed) {
+                failLocked(IOException("unable to pull ${fileBlocks.path}, no connection left: $reason"))
+            }
+        }
+    }
+
+    private fun failLocked(ex: Exception) {
+        if (error == null) {
+            error = ex
+        }
+        pendingBlocks.clear()
+        lock.notifyAll()
+    }
+
+    private fun hashBytes(hash: String) = blocksByHash[hash]!!.fold(0L, { sum, block -> sum + block.size })
+
+    private fun receivedData() = receivedBytes
+
+    private fun totalData() = fileBlocks.size
+
+    override fun progress() = synchronized(lock) { if (missingHashes.isEmpty()) 1.0 else receivedData() / totalData().toDouble() }
+
+    override fun progressMessage() = synchronized(lock) {
+        (Math.round(progress() * 1000.0) / 10.0).toString() + "% " +
+                FileUtils.byteCountToDisplaySize(receivedData()) + " / " + FileUtils.byteCountToDisplaySize(totalData())
+    }
+
+    override fun isCompleted() = synchronized(lock) { missingHashes.isEmpty() }
+
+    override fun inputStream(): InputStream {
+        NetworkUtils.assertProtocol(isCompleted(), {"pull failed, some blocks are still missing"})
+        return blockSink.inputStream()
+    }
+
+    override fun checkError() {
+        synchronized(lock) {
+            error?.let { throw IOException(it) }
+        }
+    }
+
+    @Throws(InterruptedException::class, IOException::class)
+    override fun waitForProgressUpdate(): Double {
+        synchronized(lock) {
+            if (!isCompleted()) {
+                checkErrorLocked()
+                lock.wait()
+                checkErrorLocked()
+            }
+        }
+        return progress()
+    }
+
+    /**
+     * Throws the failure of the download, or if it was closed before completing.
+     */
+    private fun checkErrorLocked() {
+        checkError()
+        if (isClosed && !isCompleted()) {
+            throw IOException("download closed")
+        }
+    }
+
+    override fun close() {
+        val pullersToDetach = synchronized(lock) {
+            isClosed = true
+            pendingBlocks.clear()
+            lock.notifyAll()
+            val list = pullers.toList()
+            pullers.clear()
+            list
+        }
+        pullersToDetach.forEach { it.removeDownload(this) }
+        blockSink.close()
+    }
+}
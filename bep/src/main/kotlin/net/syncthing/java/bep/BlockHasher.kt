@@ -0,0 +1,86 @@
+package net.syncthing.java.bep
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Computes the SHA-256 hashes of the blocks of an upload on a fixed number of threads.
+ *
+ * The blocks are split into contiguous ranges, each hashed by one task with a single pooled read buffer, so the
+ * memory in use is bounded by the number of threads.
+ */
+internal class BlockHasher(private val threads: Int) {
+
+    private val bufferPool = BufferPool()
+    private val executorService = ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+            LinkedBlockingQueue<Runnable>(), ThreadFactory { runnable ->
+        val thread = Thread(runnable, "block-hasher")
+        thread.isDaemon = true
+        thread
+    })
+
+    init {
+        executorService.allowCoreThreadTimeOut(true)
+    }
+
+    /**
+     * Returns the hashes of the blocks of [source], in order. All blocks have [blockSize] bytes, except the last one.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    fun hashBlocks(source: UploadSource, blockSize: Int): List<ByteArray> {
+        val blockCount = ((source.size + blockSize - 1) / blockSize).toInt()
+        val hashes = arrayOfNulls<ByteArray>(blockCount)
+        if (blockCount <= 1 || threads == 1) {
+            hashRange(source, blockSize, 0, blockCount, hashes)
+        } else {
+            // several ranges per thread, so threads finishing early take over work
+            val taskCount = Math.min(blockCount, threads * RANGES_PER_THREAD)
+            // the futures carry errors back to the caller, so submitLogging is not used here
+            val futures = (0 until taskCount).map { task ->
+                val firstBlock = (blockCount.toLong() * task / taskCount).toInt()
+                val endBlock = (blockCount.toLong() * (task + 1) / taskCount).toInt()
+                executorService.submit { hashRange(source, blockSize, firstBlock, endBlock, hashes) }
+            }
+            try {
+                futures.forEach { it.get() }
+            } catch (ex: ExecutionException) {
+                futures.forEach { it.cancel(true) }
+                throw ex.cause as? IOException ?: IOException(ex.cause)
+            } catch (ex: InterruptedException) {
+                futures.forEach { it.cancel(true) }
+                throw ex
+            }
+        }
+        return hashes.map { it!! }
+    }
+
+    private fun hashRange(source: UploadSource, blockSize: Int, firstBlock: Int, endBlock: Int, hashes: Array<ByteArray?>) {
+        val array = bufferPool.acquire(blockSize)
+        try {
+            val digest = MessageDigest.getInstance("SHA-256")
+            for (index in firstBlock until endBlock) {
+                val offset = index.toLong() * blockSize
+                val buffer = ByteBuffer.wrap(array, 0, Math.min(source.size - offset, blockSize.toLong()).toInt())
+                source.read(offset, buffer)
+                buffer.flip()
+                digest.update(buffer)
+                hashes[index] = digest.digest()
+            }
+        } finally {
+            bufferPool.release(array)
+        }
+    }
+
+    companion object {
+        private const val RANGES_PER_THREAD = 4
+        private const val IDLE_THREAD_TIMEOUT_SECONDS = 30L
+
+        val default by lazy { BlockHasher(Runtime.getRuntime().availableProcessors()) }
+    }
+}
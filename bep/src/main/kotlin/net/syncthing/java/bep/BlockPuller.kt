@@ -16,119 +16,361 @@ package net.syncthing.java.bep
 import com.google.protobuf.ByteString
 import net.syncthing.java.bep.BlockExchangeProtos.ErrorCode
 import net.syncthing.java.bep.BlockExchangeProtos.Request
+import net.syncthing.java.core.beans.BlockInfo
+import net.syncthing.java.core.beans.FileBlocks
 import net.syncthing.java.core.beans.FileInfo
+import net.syncthing.java.core.utils.BlockUtils
 import net.syncthing.java.core.utils.NetworkUtils
-import org.apache.commons.io.FileUtils
 import org.bouncycastle.util.encoders.Hex
 import org.slf4j.LoggerFactory
 import java.io.*
-import java.security.MessageDigest
-import java.util.*
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.atomic.AtomicReference
+import java.sql.SQLException
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 
 class BlockPuller internal constructor(private val connectionHandler: ConnectionHandler,
-                                       private val indexHandler: IndexHandler) {
+                                       internal val indexHandler: IndexHandler,
+                                       private val blockCache: BlockCache? = null,
+                                       private val requestCoalescer: BlockRequestCoalescer = BlockRequestCoalescer()) {
 
     private val logger = LoggerFactory.getLogger(javaClass)
-    private val blocksByHash = ConcurrentHashMap<String, ByteArray>()
-    private val hashList = mutableListOf<String>()
-    private val missingHashes: MutableSet<String> = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
-    private val requestIds: MutableSet<Int> = Collections.newSetFromMap(ConcurrentHashMap<Int, Boolean>())
+    private val downloads = mutableListOf<BlockDownload>()
+    private var nextDownloadIndex = 0
+    private val requestsById = IntHashMap<SentRequest>()
+    private var nextRequestId = 0
+    private var requestedBytes = 0L
+    private val requestWindow = RequestWindow()
+    private var timeoutCheckFuture: ScheduledFuture<*>? = null
+    private var isClosed = false
     private val lock = Object()
 
-    fun pullFile(fileInfo: FileInfo): FileDownloadObserver {
+    /**
+     * Time after which a block request without response is sent again. Raised to four times the measured round
+     * trip time on slow links.
+     */
+    @Volatile var requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS
+
+    /**
+     * How often a block may be requested again after a timeout, before the download fails.
+     */
+    @Volatile var maxRequestRetries = DEFAULT_MAX_REQUEST_RETRIES
+
+    /**
+     * Supplies the pullers of other connections sharing a folder, which take over downloads from this connection
+     * when it stalls.
+     */
+    @Volatile var failoverPullerSupplier: (folder: String) -> List<BlockPuller> = { emptyList() }
+
+    /**
+     * If enabled, a block whose response takes longer than [hedgePercentile] of the recent response times is
+     * requested from a second connection as well, and the first verified response is used.
+     */
+    @Volatile var hedgeRequests = false
+
+    @Volatile var hedgePercentile = DEFAULT_HEDGE_PERCENTILE
+
+    /**
+     * Upper limit for the amount of requested but not yet received data.
+     */
+    var maxRequestWindowBytes: Long
+        get() = requestWindow.maxWindowBytes
+        set(value) {
+            requestWindow.maxWindowBytes = value
+        }
+
+    /**
+     * Fixed amount of data to keep requested, or null to size the window from measured round trip time and
+     * throughput.
+     */
+    var fixedRequestWindowBytes: Long?
+        get() = requestWindow.fixedWindowBytes
+        set(value) {
+            requestWindow.fixedWindowBytes = value
+        }
+
+    /**
+     * Downloads the file into memory, its content is available from [FileDownloadObserver.inputStream] once
+     * completed.
+     */
+    fun pullFile(fileInfo: FileInfo): FileDownloadObserver = pullFile(fileInfo, listOf(this), null, FsyncPolicy.NEVER)
+
+    /**
+     * Downloads the file to [targetFile]. Blocks are written to a temporary file as they arrive, which is renamed to
+     * [targetFile] once the download completed. An interrupted download of the same file version is resumed.
+     * [requestPriority] applies from the first request on, see [FileDownloadObserver.requestPriority].
+     */
+    fun pullFile(fileInfo: FileInfo, targetFile: File, fsyncPolicy: FsyncPolicy = FsyncPolicy.ON_COMMIT,
+                 requestPriority: Int = 0): FileDownloadObserver =
+            pullFile(fileInfo, listOf(this), targetFile, fsyncPolicy, requestPriority)
+
+    /**
+     * Opens the file for random access, pulling only the blocks that are read.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    fun openFile(fileInfo: FileInfo, maxCachedBytes: Long = DEFAULT_MAX_CACHED_BYTES,
+                 readAheadBytes: Long = DEFAULT_READ_AHEAD_BYTES): RemoteFileReader =
+            openFile(fileInfo, listOf(this), maxCachedBytes, readAheadBytes)
+
+    /**
+     * Returns a stream of the file content, which yields each block as soon as it and all preceding blocks were
+     * received. Blocks are requested in file order, up to [lookaheadBytes] ahead of the reading position.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    fun pullFileAsStream(fileInfo: FileInfo, lookaheadBytes: Long = DEFAULT_LOOKAHEAD_BYTES): InputStream =
+            pullFileAsStream(fileInfo, listOf(this), lookaheadBytes)
+
+    /**
+     * Looks up the blocks of [fileInfo], once the index of this connection is acquired.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    internal fun getFileBlocks(fileInfo: FileInfo): FileBlocks {
         val fileBlocks = indexHandler.waitForRemoteIndexAcquired(connectionHandler)
                 .getFileInfoAndBlocksByPath(fileInfo.folder, fileInfo.path)
                 ?.value
                 ?: throw IOException("file not found in local index for folder = ${fileInfo.folder} path = ${fileInfo.path}")
-        logger.info("pulling file = {}", fileBlocks)
         NetworkUtils.assertProtocol(connectionHandler.hasFolder(fileBlocks.folder), {"supplied connection handler $connectionHandler will not share folder ${fileBlocks.folder}"})
-        val error = AtomicReference<Exception>()
-        val fileDownloadObserver = object : FileDownloadObserver() {
+        return fileBlocks
+    }
 
-            private fun receivedData() = (blocksByHash.size * BlockPusher.BLOCK_SIZE).toLong()
+    /**
+     * Returns true if the index of this connection lists [fileBlocks], with the same content.
+     */
+    @Throws(InterruptedException::class)
+    private fun hasFileBlocks(fileBlocks: FileBlocks): Boolean {
+        if (!connectionHandler.hasFolder(fileBlocks.folder)) {
+            return false
+        }
+        val indexFileBlocks = indexHandler.waitForRemoteIndexAcquired(connectionHandler)
+                .getFileInfoAndBlocksByPath(fileBlocks.folder, fileBlocks.path)
+                ?.value
+        return indexFileBlocks?.hash == fileBlocks.hash
+    }
 
-            private fun totalData() = ((blocksByHash.size + missingHashes.size) * BlockPusher.BLOCK_SIZE).toLong()
+    internal fun addDownload(download: BlockDownload) {
+        synchronized(lock) {
+            if (isClosed) {
+                download.onPullerDetached(this, "connection $connectionHandler closed")
+                return
+            }
+            downloads.add(download)
+            if (timeoutCheckFuture == null) {
+                timeoutCheckFuture = connectionHandler.scheduledExecutorService.scheduleWithFixedDelay({
+                    try {
+                        checkTimeouts()
+                    } catch (ex: Exception) {
+                        logger.error("error checking request timeouts", ex)
+                    }
+                }, TIMEOUT_CHECK_INTERVAL_MILLIS, TIMEOUT_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+            }
+        }
+        sendRequests()
+    }
 
-            override fun progress() = if (isCompleted()) 1.0 else receivedData() / totalData().toDouble()
+    /**
+     * Stops serving [download], its blocks requested on this connection are handed back to the download.
+     */
+    internal fun removeDownload(download: BlockDownload) {
+        val failedBlocks = synchronized(lock) {
+            downloads.remove(download)
+            removeRequests({ it.download == download })
+        }
+        failWaiters(failedBlocks)
+        failedBlocks.filter { !it.isHedge }.forEach { download.onRequestFailed(it.block) }
+    }
 
-            override fun progressMessage() = (Math.round(progress() * 1000.0) / 10.0).toString() + "% " +
-                    FileUtils.byteCountToDisplaySize(receivedData()) + " / " + FileUtils.byteCountToDisplaySize(totalData())
+    /**
+     * Requests blocks of the active downloads, in turn, until the request window is full. Downloads with a lower
+     * [FileDownloadObserver.requestPriority] are only served while those with a higher one have no blocks to request.
+     */
+    internal fun sendRequests() {
+        val requests = mutableListOf<Request>()
+        val hedgeDelayNanos = if (hedgeRequests) requestWindow.roundTripTimePercentileNanos(hedgePercentile) else null
+        synchronized(lock) {
+            val windowBytes = requestWindow.windowBytes
+            val priorities = downloads.map { it.requestPriority }
+            for (priority in priorities.distinct().sortedDescending()) {
+                sendRequestsLocked(requests, windowBytes, priorities, priority)
+            }
+        }
+        // sent without holding the lock, so responses can be processed while the outbound queue is full
+        for (request in requests) {
+            connectionHandler.sendMessage(request)
+            logger.debug("sent request for block, id = {}", request.id)
+            hedgeDelayNanos?.let { delay ->
+                connectionHandler.scheduledExecutorService.schedule({ hedgeRequest(request.id) }, delay, TimeUnit.NANOSECONDS)
+            }
+        }
+    }
 
-            override fun isCompleted() = missingHashes.isEmpty()
+    private fun sendRequestsLocked(requests: MutableList<Request>, windowBytes: Long, priorities: List<Int>, priority: Int) {
+        val priorityDownloads = priorities.count { it == priority }
+        var idleDownloads = 0
+        while (requestedBytes < windowBytes && idleDownloads < priorityDownloads) {
+            nextDownloadIndex = (nextDownloadIndex + 1) % downloads.size
+            if (priorities[nextDownloadIndex] != priority) {
+                continue
+            }
+            val download = downloads[nextDownloadIndex]
+            val block = download.claimBlock()
+            if (block == null) {
+                idleDownloads++
+                continue
+            }
+            idleDownloads = 0
+            val sentRequest = SentRequest(download, block, System.nanoTime(), false)
+            // another download requesting the same block passes it on
+            if (requestCoalescer.join(download, block, sentRequest)) {
+                requests.add(createRequestLocked(sentRequest))
+            }
+        }
+    }
 
-            override fun inputStream(): InputStream {
-                    NetworkUtils.assertProtocol(missingHashes.isEmpty(), {"pull failed, some blocks are still missing"})
-                    val blockList = hashList.map { blocksByHash[it] }.toList()
-                    return SequenceInputStream(Collections.enumeration(blockList.map { ByteArrayInputStream(it) }))
-                }
+    private fun createRequestLocked(sentRequest: SentRequest): Request {
+        val requestId = nextRequestId
+        nextRequestId = (nextRequestId + 1) and Int.MAX_VALUE
+        requestsById[requestId] = sentRequest
+        requestedBytes += sentRequest.size
+        return Request.newBuilder()
+                .setId(requestId)
+                .setFolder(sentRequest.download.fileBlocks.folder)
+                .setName(sentRequest.download.fileBlocks.path)
+                .setOffset(sentRequest.block.offset)
+                .setSize(sentRequest.block.size)
+                .setHash(ByteString.copyFrom(Hex.decode(sentRequest.block.hash)))
+                .build()
+    }
 
-            override fun checkError() {
-                if (error.get() != null) {
-                    throw IOException(error.get())
-                }
-            }
+    /**
+     * Hands the blocks of failed [requests] back to the other downloads waiting for them.
+     */
+    private fun failWaiters(requests: List<SentRequest>) {
+        for (request in requests) {
+            requestCoalescer.fail(request.block.hash, request).forEach { it.download.onRequestFailed(it.block) }
+        }
+    }
 
-            @Throws(InterruptedException::class)
-            override fun waitForProgressUpdate(): Double {
-                if (!isCompleted()) {
-                    synchronized(lock) {
-                        checkError()
-                        lock.wait()
-                        checkError()
-                    }
-                }
-                return progress()
-            }
+    /**
+     * Asks the download to request the block of [requestId] from another connection, if it is still pending.
+     */
+    private fun hedgeRequest(requestId: Int) {
+        try {
+            val request = synchronized(lock) { requestsById[requestId] } ?: return
+            request.download.hedgeRequest(this, request.block)
+        } catch (ex: Exception) {
+            logger.error("error hedging request", ex)
+        }
+    }
 
-            override fun close() {
-                missingHashes.clear()
-                hashList.clear()
-                blocksByHash.clear()
+    /**
+     * Requests [block] of [download] immediately, in addition to the request on another connection which is late.
+     */
+    internal fun sendHedgedRequest(download: BlockDownload, block: BlockInfo) {
+        val request = synchronized(lock) {
+            if (isClosed) {
+                return
             }
+            createRequestLocked(SentRequest(download, block, System.nanoTime(), true))
         }
-        synchronized(lock) {
-            hashList.addAll(fileBlocks.blocks.map { it.hash })
-            missingHashes.addAll(hashList)
-            for (block in fileBlocks.blocks) {
-                if (missingHashes.contains(block.hash)) {
-                    val requestId = Math.abs(Random().nextInt())
-                    requestIds.add(requestId)
-                    connectionHandler.sendMessage(Request.newBuilder()
-                            .setId(requestId)
-                            .setFolder(fileBlocks.folder)
-                            .setName(fileBlocks.path)
-                            .setOffset(block.offset)
-                            .setSize(block.size)
-                            .setHash(ByteString.copyFrom(Hex.decode(block.hash)))
-                            .build())
-                    logger.debug("sent request for block, hash = {}", block.hash)
-                }
-            }
-            return fileDownloadObserver
+        connectionHandler.sendMessage(request)
+        logger.debug("sent hedged request for block {}, id = {}", block.hash, request.id)
+    }
+
+    /**
+     * Drops the pending requests for the block with [hash] of [download], which was received from another
+     * connection. Their responses are ignored.
+     */
+    internal fun cancelRequests(download: BlockDownload, hash: String) {
+        val cancelledRequests = synchronized(lock) { removeRequests({ it.download == download && it.block.hash == hash }) }
+        failWaiters(cancelledRequests)
+        if (cancelledRequests.isNotEmpty()) {
+            sendRequests()
         }
     }
 
+    internal val roundTripTimeNanos: Long
+        get() = requestWindow.roundTripTimeNanos
+
     fun onResponseMessageReceived(response: BlockExchangeProtos.Response) {
-        synchronized(lock) {
-            if (!requestIds.contains(response.id)) {
-                return
-            }
-            NetworkUtils.assertProtocol(response.code == ErrorCode.NO_ERROR, {"received error response, code = ${response.code}"})
-            val data = response.data.toByteArray()
-            val hash = Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(data))
-            if (missingHashes.remove(hash)) {
-                blocksByHash.put(hash, data)
-                logger.debug("aquired block, hash = {}", hash)
-                lock.notify()
+        val request = synchronized(lock) {
+            val request = requestsById.remove(response.id) ?: return
+            requestedBytes -= request.size
+            requestWindow.onResponse(request.size, System.nanoTime() - request.sentTime)
+            request
+        }
+        if (response.code != ErrorCode.NO_ERROR && request.isHedge) {
+            // the original request is still pending
+            logger.debug("received error response, code = {}, for hedged request", response.code)
+        } else if (response.code != ErrorCode.NO_ERROR) {
+            // the peer does not have this version of the file (anymore), leave it to the other connections
+            logger.warn("received error response, code = {}, for file {}", response.code, request.download.fileBlocks.path)
+            request.download.onPullerDetached(this, "received error response, code = ${response.code}")
+            removeDownload(request.download)
+            failWaiters(listOf(request))
+            request.download.onRequestFailed(request.block)
+        } else {
+            val hash = BlockUtils.hashBlock(response.data.asReadOnlyByteBuffer())
+            if (hash == request.block.hash) {
+                request.download.onBlockReceived(hash, response.data.asReadOnlyByteBuffer())
+                requestCoalescer.complete(hash).forEach { it.download.onBlockReceived(hash, response.data.asReadOnlyByteBuffer()) }
+                blockCache?.put(hash, response.data.asReadOnlyByteBuffer())
             } else {
-                logger.warn("received not-needed block, hash = {}", hash)
+                logger.warn("received block with wrong hash = {}, expected = {}", hash, request.block.hash)
+                if (!request.isHedge) {
+                    failWaiters(listOf(request))
+                    request.download.onRequestFailed(request.block)
+                }
             }
         }
+        sendRequests()
+    }
+
+    private fun checkTimeouts() {
+        val now = System.nanoTime()
+        val timeoutNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis), 4 * requestWindow.roundTripTimeNanos)
+        val timedOutRequests = synchronized(lock) { removeRequests({ now - it.sentTime > timeoutNanos }) }
+        failWaiters(timedOutRequests)
+        for (request in timedOutRequests.filter { !it.isHedge }) {
+            logger.warn("request for block {} of {} timed out on {}", request.block.hash, request.download.fileBlocks.path, connectionHandler)
+            request.download.onRequestTimedOut(this, request.block)
+        }
+        if (timedOutRequests.isNotEmpty()) {
+            sendRequests()
+        }
     }
 
-    abstract inner class FileDownloadObserver : Closeable {
+    /**
+     * Hands all requested blocks back to their downloads, which continue on other connections if possible.
+     */
+    internal fun onConnectionClosed() {
+        val (closedDownloads, failedRequests) = synchronized(lock) {
+            isClosed = true
+            timeoutCheckFuture?.cancel(false)
+            val list = downloads.toList()
+            downloads.clear()
+            Pair(list, removeRequests({ true }))
+        }
+        closedDownloads.forEach { it.onPullerDetached(this, "connection $connectionHandler closed") }
+        failWaiters(failedRequests)
+        failedRequests.filter { !it.isHedge }.forEach { it.download.onRequestFailed(it.block) }
+    }
+
+    private fun removeRequests(predicate: (SentRequest) -> Boolean): List<SentRequest> {
+        val removed = requestsById.removeValues(predicate)
+        removed.forEach { requestedBytes -= it.size }
+        return removed
+    }
+
+    private class SentRequest(val download: BlockDownload, val block: BlockInfo, val sentTime: Long, val isHedge: Boolean) {
+        val size: Int
+            get() = block.size
+    }
+
+    abstract class FileDownloadObserver : Closeable {
+
+        /**
+         * Downloads with a higher priority get their blocks requested first.
+         */
+        @Volatile var requestPriority = 0
 
         abstract fun progress(): Double
 
@@ -140,10 +382,10 @@ class BlockPuller internal constructor(private val connectionHandler: Connection
 
         abstract fun checkError()
 
-        @Throws(InterruptedException::class)
+        @Throws(InterruptedException::class, IOException::class)
         abstract fun waitForProgressUpdate(): Double
 
-        @Throws(InterruptedException::class)
+        @Throws(InterruptedException::class, IOException::class)
         fun waitForComplete(): FileDownloadObserver {
             while (!isCompleted()) {
                 waitForProgressUpdate()
@@ -155,4 +397,74 @@ class BlockPuller internal constructor(private val connectionHandler: Connection
 
     }
 
+    companion object {
+        private const val DEFAULT_REQUEST_TIMEOUT_MILLIS = 30L * 1000
+        private const val DEFAULT_MAX_REQUEST_RETRIES = 3
+        private const val TIMEOUT_CHECK_INTERVAL_MILLIS = 1000L
+        private const val DEFAULT_HEDGE_PERCENTILE = 0.95
+        internal const val DEFAULT_MAX_CACHED_BYTES = 16L * 1024 * 1024
+        internal const val DEFAULT_READ_AHEAD_BYTES = 4L * 1024 * 1024
+        internal const val DEFAULT_LOOKAHEAD_BYTES = 8L * 1024 * 1024
+
+        /**
+         * Downloads the file from all [blockPullers] at once, the file must have the same blocks on all of them. The
+         * file is kept in memory if [targetFile] is null.
+         */
+        @Throws(IOException::class, InterruptedException::class)
+        internal fun pullFile(fileInfo: FileInfo, blockPullers: List<BlockPuller>, targetFile: File?,
+                              fsyncPolicy: FsyncPolicy, requestPriority: Int = 0): FileDownloadObserver {
+            NetworkUtils.assertProtocol(blockPullers.isNotEmpty(), {"no connection to pull ${fileInfo.path} from"})
+            val fileBlocks = blockPullers.first().getFileBlocks(fileInfo)
+            val matchingPullers = blockPullers.filter { it.hasFileBlocks(fileBlocks) }
+            LoggerFactory.getLogger(BlockPuller::class.java).info("pulling file = {} from {} connection(s)", fileBlocks, matchingPullers.size)
+            val indexRepository = blockPullers.first().indexHandler.indexRepository
+            val blockSink = if (targetFile == null) {
+                MemoryBlockSink(fileBlocks.blocks)
+            } else {
+                FileBlockSink(targetFile, fileBlocks, fsyncPolicy, {
+                    try {
+                        indexRepository.updateBlockLocations(targetFile.absolutePath,
+                                fileBlocks.blocks.filter { !BlockUtils.isZeroBlock(it) })
+                    } catch (ex: SQLException) {
+                        LoggerFactory.getLogger(BlockPuller::class.java).warn("unable to store block locations of $targetFile", ex)
+                    }
+                })
+            }
+            val download = BlockDownload(fileBlocks, blockSink, createBlockSources(blockPullers.first()))
+            download.requestPriority = requestPriority
+            download.start(matchingPullers)
+            return download
+        }
+
+        private fun createBlockSources(blockPuller: BlockPuller): List<BlockSource> =
+                listOfNotNull(ZeroBlockSource(), blockPuller.blockCache?.asBlockSource(),
+                        LocalBlockSource(blockPuller.indexHandler.indexRepository))
+
+        @Throws(IOException::class, InterruptedException::class)
+        internal fun openFile(fileInfo: FileInfo, blockPullers: List<BlockPuller>, maxCachedBytes: Long,
+                              readAheadBytes: Long): RemoteFileReader {
+            NetworkUtils.assertProtocol(blockPullers.isNotEmpty(), {"no connection to pull ${fileInfo.path} from"})
+            val fileBlocks = blockPullers.first().getFileBlocks(fileInfo)
+            val reader = RemoteFileReader(fileBlocks, createBlockSources(blockPullers.first()),
+                    maxCachedBytes, readAheadBytes)
+            reader.start(blockPullers.filter { it.hasFileBlocks(fileBlocks) })
+            return reader
+        }
+
+        @Throws(IOException::class, InterruptedException::class)
+        internal fun pullFileAsStream(fileInfo: FileInfo, blockPullers: List<BlockPuller>, lookaheadBytes: Long): InputStream {
+            NetworkUtils.assertProtocol(blockPullers.isNotEmpty(), {"no connection to pull ${fileInfo.path} from"})
+            val fileBlocks = blockPullers.first().getFileBlocks(fileInfo)
+            // room for the lookahead plus the blocks being read
+            val maxBlockSize = fileBlocks.blocks.map { it.size }.max() ?: 0
+            val reader = RemoteFileReader(fileBlocks, createBlockSources(blockPullers.first()),
+                    lookaheadBytes + 2L * maxBlockSize, lookaheadBytes, true)
+            reader.start(blockPullers.filter { it.hasFileBlocks(fileBlocks) })
+            return object : FilterInputStream(reader.inputStream()) {
+                override fun close() {
+                    reader.close()
+                }
+            }
+        }
+    }
 }
@@ -14,6 +14,7 @@
 package net.syncthing.java.bep
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
 import net.syncthing.java.bep.BlockExchangeProtos.Vector
 import net.syncthing.java.core.beans.*
 import net.syncthing.java.core.beans.FileInfo.Version
@@ -21,21 +22,23 @@ import net.syncthing.java.core.configuration.Configuration
 import net.syncthing.java.core.utils.BlockUtils
 import net.syncthing.java.core.utils.NetworkUtils
 import net.syncthing.java.core.utils.submitLogging
-import org.apache.commons.io.IOUtils
 import org.apache.commons.lang3.tuple.Pair
 import org.bouncycastle.util.encoders.Hex
 import org.slf4j.LoggerFactory
 import java.io.Closeable
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
 import java.nio.ByteBuffer
-import java.security.MessageDigest
+import java.sql.SQLException
 import java.util.*
+import java.util.concurrent.Callable
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.Executors
 import java.util.concurrent.Future
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
 
 class BlockPusher internal constructor(private val localDeviceId: DeviceId,
@@ -61,13 +64,36 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
                 .setType(BlockExchangeProtos.FileInfoType.DIRECTORY), null))
     }
 
-    fun pushFile(inputStream: InputStream, folderId: String, targetPath: String): FileUploadObserver {
+    /**
+     * Uploads the content of [inputStream], which is copied to a temporary file first.
+     */
+    @Throws(IOException::class)
+    fun pushFile(inputStream: InputStream, folderId: String, targetPath: String): FileUploadObserver =
+            pushFile(FileUploadSource.spool(inputStream), folderId, targetPath)
+
+    /**
+     * Uploads [file], serving requested blocks from it directly.
+     */
+    @Throws(IOException::class)
+    fun pushFile(file: File, folderId: String, targetPath: String): FileUploadObserver =
+            pushFile(FileUploadSource(file), folderId, targetPath, file)
+
+    private fun pushFile(uploadSource: UploadSource, folderId: String, targetPath: String, file: File? = null): FileUploadObserver {
+        try {
+            return pushFileFromSource(uploadSource, folderId, targetPath, file)
+        } catch (ex: Exception) {
+            uploadSource.close()
+            throw ex
+        }
+    }
+
+    private fun pushFileFromSource(uploadSource: UploadSource, folderId: String, targetPath: String, file: File?): FileUploadObserver {
         val fileInfo = indexHandler.waitForRemoteIndexAcquired(connectionHandler).getFileInfoByPath(folderId, targetPath)
         NetworkUtils.assertProtocol(connectionHandler.hasFolder(folderId), {"supplied connection handler $connectionHandler will not share folder $folderId"})
         assert(fileInfo == null || fileInfo.folder == folderId)
         assert(fileInfo == null || fileInfo.path == targetPath)
         val monitoringProcessExecutorService = Executors.newCachedThreadPool()
-        val dataSource = DataSource(inputStream)
+        val dataSource = if (file != null) hashFile(file, uploadSource) else DataSource(uploadSource)
         val fileSize = dataSource.size
         val sentBlocks = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
         val uploadError = AtomicReference<Exception>()
@@ -77,16 +103,24 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
             if (request.folder == folderId && request.name == targetPath) {
                 val hash = Hex.toHexString(request.hash.toByteArray())
                 logger.debug("handling block request = {}:{}-{} ({})", request.name, request.offset, request.size, hash)
-                val data = dataSource.getBlock(request.offset, request.size, hash)
+                // stored hashes may be outdated if the file was changed without a new modification time
+                val data = try {
+                    dataSource.getBlock(request.offset, request.size, hash)
+                } catch (ex: IOException) {
+                    logger.warn("unable to read block {} of {}", hash, targetPath, ex)
+                    null
+                }
                 val future = connectionHandler.sendMessage(BlockExchangeProtos.Response.newBuilder()
-                        .setCode(BlockExchangeProtos.ErrorCode.NO_ERROR)
-                        .setData(ByteString.copyFrom(data))
+                        .setCode(if (data != null) BlockExchangeProtos.ErrorCode.NO_ERROR else BlockExchangeProtos.ErrorCode.GENERIC)
+                        .setData(if (data != null) UnsafeByteOperations.unsafeWrap(data) else ByteString.EMPTY)
                         .setId(request.id)
                         .build())
                 monitoringProcessExecutorService.submitLogging {
                     try {
                         future.get()
-                        sentBlocks.add(hash)
+                        if (data != null) {
+                            sentBlocks.add(hash)
+                        }
                         synchronized(updateLock) {
                             updateLock.notifyAll()
                         }
@@ -121,6 +155,7 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
         val indexUpdate = sendIndexUpdate(folderId, BlockExchangeProtos.FileInfo.newBuilder()
                 .setName(targetPath)
                 .setSize(fileSize)
+                .setBlockSize(dataSource.blockSize)
                 .setType(BlockExchangeProtos.FileInfoType.FILE)
                 .addAllBlocks(dataSource.blocks), fileInfo?.versionList).right
         return object : FileUploadObserver() {
@@ -135,6 +170,7 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
                 monitoringProcessExecutorService.shutdown()
                 indexHandler.unregisterOnIndexRecordAcquiredListener(indexListener)
                 connectionHandler.unregisterOnRequestMessageReceivedListeners(listener)
+                uploadSource.close()
                 val fileInfo1 = indexHandler.pushRecord(indexUpdate.folder, indexUpdate.filesList.single())
                 logger.info("sent file info record = {}", fileInfo1)
             }
@@ -153,31 +189,266 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
         }
     }
 
+    /**
+     * Uploads the files and directories below [directory] to [targetPath], or to the folder root if it is empty.
+     *
+     * All files are hashed in parallel first, and then announced in as few index updates as possible, each limited
+     * to [MAX_INDEX_UPDATE_FILES] files and about [MAX_INDEX_UPDATE_BYTES] bytes. Block requests for any of the files
+     * are served concurrently, and the progress covers the data of all files. Files which the index lists with the
+     * same content already are not announced again.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    fun pushDirectory(directory: File, folderId: String, targetPath: String): FileUploadObserver {
+        NetworkUtils.assertProtocol(connectionHandler.hasFolder(folderId), {"supplied connection handler $connectionHandler will not share folder $folderId"})
+        if (!directory.isDirectory) {
+            throw IOException("$directory is not a directory")
+        }
+        val index = indexHandler.waitForRemoteIndexAcquired(connectionHandler)
+        val basePath = targetPath.trim('/')
+        val localFiles = listDirectory(directory)
+        val files = localFiles.filter { it.isFile }
+        val uploads = files.zip(hashFiles(files), { file, hashedFile ->
+            val path = childPath(basePath, directory, file)
+            DirectoryUpload(file, path, hashedFile, index.getFileInfoByPath(folderId, path))
+        }).filter { upload ->
+            val fileInfo = upload.oldFileInfo
+            fileInfo == null || fileInfo.isDeleted || !fileInfo.isFile() || fileInfo.hash != upload.hashedFile.hash
+        }
+        val directoryPaths = (if (basePath.isEmpty()) emptyList() else listOf(basePath)) +
+                localFiles.filter { it.isDirectory }.map { childPath(basePath, directory, it) }
+        val newDirectories = directoryPaths.map { path -> Pair.of(path, index.getFileInfoByPath(folderId, path)) }
+                .filter { pair -> pair.right.let { it == null || it.isDeleted || !it.isDirectory() } }
+        val uploadsByPath = uploads.associateBy { it.path }
+        val totalBytes = uploads.fold(0L, { bytes, upload -> bytes + upload.hashedFile.size })
+        logger.info("pushing {} files ({} bytes) and {} directories from {}", uploads.size, totalBytes,
+                newDirectories.size, directory)
+
+        val monitoringProcessExecutorService = Executors.newCachedThreadPool()
+        val sentBytes = AtomicLong(0)
+        // a block requested again, eg after a timeout, is counted once
+        val sentBlocks = Collections.newSetFromMap(ConcurrentHashMap<Pair<String, Long>, Boolean>())
+        val confirmedPaths = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+        val uploadError = AtomicReference<Exception>()
+        val updateLock = Object()
+        val listener = {request: BlockExchangeProtos.Request ->
+            val upload = if (request.folder == folderId) uploadsByPath[request.name] else null
+            if (upload != null) {
+                val hash = Hex.toHexString(request.hash.toByteArray())
+                logger.debug("handling block request = {}:{}-{} ({})", request.name, request.offset, request.size, hash)
+                // files are opened per request, a large tree would run out of file handles otherwise
+                val data = try {
+                    FileUploadSource(upload.file).use { it.read(request.offset, request.size) }
+                            .takeIf { BlockUtils.hashBlock(it) == hash }
+                } catch (ex: IOException) {
+                    logger.warn("unable to read block from {}", upload.file, ex)
+                    null
+                }
+                if (data == null) {
+                    logger.warn("block {} of {} changed or unreadable", hash, upload.file)
+                }
+                val future = connectionHandler.sendMessage(BlockExchangeProtos.Response.newBuilder()
+                        .setCode(if (data != null) BlockExchangeProtos.ErrorCode.NO_ERROR else BlockExchangeProtos.ErrorCode.GENERIC)
+                        .setData(if (data != null) UnsafeByteOperations.unsafeWrap(data) else ByteString.EMPTY)
+                        .setId(request.id)
+                        .build())
+                monitoringProcessExecutorService.submitLogging {
+                    try {
+                        future.get()
+                        if (data != null && sentBlocks.add(Pair.of(request.name, request.offset))) {
+                            sentBytes.addAndGet(request.size.toLong())
+                        }
+                        synchronized(updateLock) {
+                            updateLock.notifyAll()
+                        }
+                    } catch (ex: InterruptedException) {
+                        //return and do nothing
+                    } catch (ex: ExecutionException) {
+                        uploadError.set(ex)
+                        synchronized(updateLock) {
+                            updateLock.notifyAll()
+                        }
+                    }
+                }
+            }
+        }
+        connectionHandler.registerOnRequestMessageReceivedListeners(listener)
+        val indexListener = { folderInfo: FolderInfo, newRecords: List<FileInfo>, _: IndexInfo ->
+            if (folderInfo.folderId == folderId) {
+                val confirmed = newRecords.filter { uploadsByPath[it.path]?.hashedFile?.hash == it.hash }
+                if (confirmed.isNotEmpty()) {
+                    confirmedPaths.addAll(confirmed.map { it.path })
+                    synchronized(updateLock) {
+                        updateLock.notifyAll()
+                    }
+                }
+            }
+        }
+        indexHandler.registerOnIndexRecordAcquiredListener(indexListener)
+
+        // parents are listed before their children, so the peer creates the directories first
+        val firstSequence = indexHandler.sequencer().nextSequences(Math.max(1, newDirectories.size + uploads.size))
+        val fileInfos = newDirectories.mapIndexed { pathIndex, pair ->
+            buildFileInfo(BlockExchangeProtos.FileInfo.newBuilder()
+                    .setName(pair.left)
+                    .setType(BlockExchangeProtos.FileInfoType.DIRECTORY),
+                    pair.right?.versionList, firstSequence + pathIndex)
+        } + uploads.mapIndexed { uploadIndex, upload ->
+            buildFileInfo(BlockExchangeProtos.FileInfo.newBuilder()
+                    .setName(upload.path)
+                    .setSize(upload.hashedFile.size)
+                    .setBlockSize(upload.hashedFile.blockSize)
+                    .setType(BlockExchangeProtos.FileInfoType.FILE)
+                    .addAllBlocks(upload.hashedFile.blocks),
+                    upload.oldFileInfo?.versionList, firstSequence + newDirectories.size + uploadIndex)
+        }
+        var indexUpdate = BlockExchangeProtos.IndexUpdate.newBuilder().setFolder(folderId)
+        var indexUpdateBytes = 0
+        fileInfos.forEach { fileInfo ->
+            if (indexUpdate.filesCount > 0 && (indexUpdate.filesCount >= MAX_INDEX_UPDATE_FILES
+                    || indexUpdateBytes + fileInfo.serializedSize > MAX_INDEX_UPDATE_BYTES)) {
+                connectionHandler.sendMessage(indexUpdate.build())
+                indexUpdate = BlockExchangeProtos.IndexUpdate.newBuilder().setFolder(folderId)
+                indexUpdateBytes = 0
+            }
+            indexUpdate.addFiles(fileInfo)
+            // field tag and length prefix of the embedded message
+            indexUpdateBytes += fileInfo.serializedSize + 6
+        }
+        if (indexUpdate.filesCount > 0) {
+            connectionHandler.sendMessage(indexUpdate.build())
+        }
+        logger.debug("sent {} file infos for {}", fileInfos.size, directory)
+
+        return object : FileUploadObserver() {
+
+            override fun progressPercentage() = when {
+                isCompleted() -> 100
+                totalBytes == 0L -> 0
+                else -> Math.min(99L, sentBytes.get() * 100 / totalBytes).toInt()
+            }
+
+            override fun isCompleted() = confirmedPaths.size == uploads.size
+
+            override fun close() {
+                logger.debug("closing directory upload process")
+                monitoringProcessExecutorService.shutdown()
+                indexHandler.unregisterOnIndexRecordAcquiredListener(indexListener)
+                connectionHandler.unregisterOnRequestMessageReceivedListeners(listener)
+                fileInfos.forEach { indexHandler.pushRecord(folderId, it) }
+                logger.info("sent {} file info records for {}", fileInfos.size, directory)
+            }
+
+            @Throws(InterruptedException::class, IOException::class)
+            override fun waitForProgressUpdate(): Int {
+                synchronized(updateLock) {
+                    if (!isCompleted()) {
+                        updateLock.wait()
+                    }
+                }
+                if (uploadError.get() != null) {
+                    throw IOException(uploadError.get())
+                }
+                return progressPercentage()
+            }
+        }
+    }
+
+    /**
+     * Lists the files and directories below [directory], each directory before its content. Temporary files and
+     * directories of downloads are skipped with their content, and directories reached again through links are not
+     * listed twice.
+     */
+    private fun listDirectory(directory: File): List<File> {
+        val visitedDirectories = mutableSetOf<String>()
+        return directory.walkTopDown()
+                .onEnter { (it == directory || !isTemporaryFile(it)) && visitedDirectories.add(it.canonicalPath) }
+                .filter { it != directory && !isTemporaryFile(it) }
+                .toList()
+    }
+
+    private fun isTemporaryFile(file: File) = file.name.startsWith(".syncthing.")
+
+    private fun childPath(basePath: String, directory: File, file: File): String {
+        val relativePath = file.relativeTo(directory).path.replace(File.separatorChar, '/')
+        return if (basePath.isEmpty()) relativePath else "$basePath/$relativePath"
+    }
+
+    /**
+     * Hashes [files] on one thread per processor, as most files of a large tree are too small to split. The files
+     * are closed again, blocks are read from a file opened per request.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    private fun hashFiles(files: List<File>): List<HashedFile> {
+        val executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+        try {
+            // the futures carry errors back to the caller, so submitLogging is not used here
+            val futures = files.map { file ->
+                executorService.submit(Callable {
+                    FileUploadSource(file).use { uploadSource ->
+                        val dataSource = hashFile(file, uploadSource)
+                        HashedFile(dataSource.size, dataSource.blockSize, dataSource.blocks, dataSource.getHash())
+                    }
+                })
+            }
+            return futures.map { future ->
+                try {
+                    future.get()
+                } catch (ex: ExecutionException) {
+                    throw ex.cause as? IOException ?: IOException(ex.cause)
+                }
+            }
+        } finally {
+            executorService.shutdownNow()
+        }
+    }
+
+    /**
+     * Hashes [file], opened as [uploadSource], or takes the hashes stored in the repository if the file has the same
+     * size and modification time as when it was hashed last.
+     */
+    @Throws(IOException::class)
+    private fun hashFile(file: File, uploadSource: UploadSource): DataSource {
+        val indexRepository = indexHandler.indexRepository
+        val localPath = file.canonicalPath
+        // read before hashing, so a change during hashing leaves stored hashes with an outdated time
+        val lastModified = file.lastModified()
+        val blockSize = blockSize(uploadSource.size)
+        val localFileHashes = try {
+            indexRepository.findLocalFileHashes(localPath, uploadSource.size, lastModified)
+        } catch (ex: SQLException) {
+            logger.warn("unable to look up hashes of {}", file, ex)
+            null
+        } catch (ex: IOException) {
+            // a corrupt entry, hash the file again
+            logger.warn("unable to read stored hashes of {}", file, ex)
+            null
+        }
+        if (localFileHashes != null && localFileHashes.blockSize == blockSize) {
+            logger.debug("using stored hashes of {}", file)
+            return DataSource(uploadSource, localFileHashes.blocks.map { block ->
+                BlockExchangeProtos.BlockInfo.newBuilder()
+                        .setHash(ByteString.copyFrom(Hex.decode(block.hash)))
+                        .setOffset(block.offset)
+                        .setSize(block.size)
+                        .build()
+            }, localFileHashes.hash)
+        }
+        val dataSource = DataSource(uploadSource)
+        // a file written again within the resolution of its modification time may keep the same time
+        if (lastModified > 0 && System.currentTimeMillis() - lastModified > MODIFICATION_TIME_RESOLUTION_MILLIS) {
+            try {
+                indexRepository.updateLocalFileHashes(LocalFileHashes(localPath, dataSource.size, lastModified,
+                        dataSource.blockSize, dataSource.getBlockInfos(), dataSource.getHash()))
+            } catch (ex: SQLException) {
+                logger.warn("unable to store hashes of {}", file, ex)
+            }
+        }
+        return dataSource
+    }
+
     private fun sendIndexUpdate(folderId: String, fileInfoBuilder: BlockExchangeProtos.FileInfo.Builder,
                                 oldVersions: Iterable<Version>?): Pair<Future<*>, BlockExchangeProtos.IndexUpdate> {
-        run {
-            val nextSequence = indexHandler.sequencer().nextSequence()
-            val list = oldVersions ?: emptyList()
-            logger.debug("version list = {}", list)
-            val id = ByteBuffer.wrap(localDeviceId.toHashData()).long
-            val version = BlockExchangeProtos.Counter.newBuilder()
-                    .setId(id)
-                    .setValue(nextSequence)
-                    .build()
-            logger.debug("append new version = {}", version)
-            fileInfoBuilder
-                    .setSequence(nextSequence)
-                    .setVersion(Vector.newBuilder().addAllCounters(list.map { record ->
-                        BlockExchangeProtos.Counter.newBuilder().setId(record.id).setValue(record.value).build()
-                    })
-                            .addCounters(version))
-        }
-        val lastModified = Date()
-        val fileInfo = fileInfoBuilder
-                .setModifiedS(lastModified.time / 1000)
-                .setModifiedNs((lastModified.time % 1000 * 1000000).toInt())
-                .setNoPermissions(true)
-                .build()
+        val fileInfo = buildFileInfo(fileInfoBuilder, oldVersions, indexHandler.sequencer().nextSequence())
         val indexUpdate = BlockExchangeProtos.IndexUpdate.newBuilder()
                 .setFolder(folderId)
                 .addFiles(fileInfo)
@@ -186,6 +457,32 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
         return Pair.of(connectionHandler.sendMessage(indexUpdate), indexUpdate)
     }
 
+    /**
+     * Completes a file info with a new version from [sequence], following [oldVersions], and the current time.
+     */
+    private fun buildFileInfo(fileInfoBuilder: BlockExchangeProtos.FileInfo.Builder, oldVersions: Iterable<Version>?,
+                              sequence: Long): BlockExchangeProtos.FileInfo {
+        val list = oldVersions ?: emptyList()
+        logger.debug("version list = {}", list)
+        val id = ByteBuffer.wrap(localDeviceId.toHashData()).long
+        val version = BlockExchangeProtos.Counter.newBuilder()
+                .setId(id)
+                .setValue(sequence)
+                .build()
+        logger.debug("append new version = {}", version)
+        val lastModified = Date()
+        return fileInfoBuilder
+                .setSequence(sequence)
+                .setVersion(Vector.newBuilder().addAllCounters(list.map { record ->
+                    BlockExchangeProtos.Counter.newBuilder().setId(record.id).setValue(record.value).build()
+                })
+                        .addCounters(version))
+                .setModifiedS(lastModified.time / 1000)
+                .setModifiedNs((lastModified.time % 1000 * 1000000).toInt())
+                .setNoPermissions(true)
+                .build()
+    }
+
     abstract inner class FileUploadObserver : Closeable {
 
         abstract fun progressPercentage(): Int
@@ -231,52 +528,29 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
 
     }
 
-    private class DataSource @Throws(IOException::class) constructor(private val inputStream: InputStream) {
+    private class DirectoryUpload(val file: File, val path: String, val hashedFile: HashedFile, val oldFileInfo: FileInfo?)
 
-        var size: Long = 0
-            private set
-        lateinit var blocks: List<BlockExchangeProtos.BlockInfo>
-            private set
-        private var hashes: Set<String>? = null
+    private class HashedFile(val size: Long, val blockSize: Int, val blocks: List<BlockExchangeProtos.BlockInfo>,
+                             val hash: String)
 
-        private var hash: String? = null
-
-        init {
-            inputStream.use { it ->
-                val list = mutableListOf<BlockExchangeProtos.BlockInfo>()
-                var offset: Long = 0
-                while (true) {
-                    var block = ByteArray(BLOCK_SIZE)
-                    val blockSize = it.read(block)
-                    if (blockSize <= 0) {
-                        break
-                    }
-                    if (blockSize < block.size) {
-                        block = Arrays.copyOf(block, blockSize)
-                    }
+    private class DataSource(private val uploadSource: UploadSource, val blocks: List<BlockExchangeProtos.BlockInfo>,
+                             private var hash: String? = null) {
 
-                    val hash = MessageDigest.getInstance("SHA-256").digest(block)
-                    list.add(BlockExchangeProtos.BlockInfo.newBuilder()
-                            .setHash(ByteString.copyFrom(hash))
-                            .setOffset(offset)
-                            .setSize(blockSize)
-                            .build())
-                    offset += blockSize.toLong()
-                }
-                size = offset
-                blocks = list
-            }
-        }
+        val size = uploadSource.size
+        val blockSize = blockSize(size)
+        private var hashes: Set<String>? = null
 
         @Throws(IOException::class)
-        fun getBlock(offset: Long, size: Int, hash: String): ByteArray {
-            val buffer = ByteArray(size)
-            inputStream.use { it ->
-                IOUtils.skipFully(it, offset)
-                IOUtils.readFully(it, buffer)
-                NetworkUtils.assertProtocol(Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(buffer)) == hash, {"block hash mismatch!"})
-                return buffer
-            }
+        constructor(uploadSource: UploadSource) : this(uploadSource, hashBlocks(uploadSource))
+
+        /**
+         * Reads a block at any offset, safe to call for concurrent requests.
+         */
+        @Throws(IOException::class)
+        fun getBlock(offset: Long, size: Int, hash: String): ByteBuffer {
+            val buffer = uploadSource.read(offset, size)
+            NetworkUtils.assertProtocol(BlockUtils.hashBlock(buffer) == hash, {"block hash mismatch!"})
+            return buffer
         }
 
 
@@ -288,21 +562,60 @@ class BlockPusher internal constructor(private val localDeviceId: DeviceId,
             }
         }
 
+        fun getBlockInfos(): List<BlockInfo> = blocks.map { input ->
+            BlockInfo(input.offset, input.size, Hex.toHexString(input.hash.toByteArray()))
+        }
+
         fun getHash(): String {
             return hash ?: let {
-                val blockInfo = blocks.map { input ->
-                    BlockInfo(input.offset, input.size, Hex.toHexString(input.hash.toByteArray()))
-                }
-                val hash2 = BlockUtils.hashBlocks(blockInfo)
+                val hash2 = BlockUtils.hashBlocks(getBlockInfos())
                 hash = hash2
                 hash2
             }
         }
+
+        companion object {
+
+            @Throws(IOException::class)
+            private fun hashBlocks(uploadSource: UploadSource): List<BlockExchangeProtos.BlockInfo> {
+                val size = uploadSource.size
+                val blockSize = blockSize(size)
+                return BlockHasher.default.hashBlocks(uploadSource, blockSize).mapIndexed { index, hash ->
+                    val offset = index.toLong() * blockSize
+                    BlockExchangeProtos.BlockInfo.newBuilder()
+                            .setHash(ByteString.copyFrom(hash))
+                            .setOffset(offset)
+                            .setSize(Math.min(size - offset, blockSize.toLong()).toInt())
+                            .build()
+                }
+            }
+        }
     }
 
     companion object {
 
-        const val BLOCK_SIZE = 128 * 1024
+        /**
+         * Smallest block size, used for files up to [DESIRED_BLOCKS_PER_FILE] times this size.
+         */
+        const val BLOCK_SIZE = BlockUtils.MIN_BLOCK_SIZE
+        const val MAX_BLOCK_SIZE = BlockUtils.MAX_BLOCK_SIZE
+        private const val DESIRED_BLOCKS_PER_FILE = 2000
+        private const val MAX_INDEX_UPDATE_FILES = 1000
+        private const val MAX_INDEX_UPDATE_BYTES = 256 * 1024
+        private const val MODIFICATION_TIME_RESOLUTION_MILLIS = 2000L
+
+        /**
+         * Returns the block size for a file of [fileSize] bytes, as chosen by syncthing: the smallest power of two
+         * from [BLOCK_SIZE] to [MAX_BLOCK_SIZE] which splits the file into fewer than [DESIRED_BLOCKS_PER_FILE]
+         * blocks.
+         */
+        fun blockSize(fileSize: Long): Int {
+            var blockSize = BLOCK_SIZE
+            while (blockSize < MAX_BLOCK_SIZE && fileSize >= DESIRED_BLOCKS_PER_FILE.toLong() * blockSize) {
+                blockSize *= 2
+            }
+            return blockSize
+        }
     }
 
 }
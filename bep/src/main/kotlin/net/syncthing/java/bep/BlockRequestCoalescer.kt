@@ -0,0 +1,54 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+
+/**
+ * Tracks the blocks being requested by all downloads sharing this instance, so a block hash needed by several
+ * downloads at once is requested only once. The other downloads wait for that request and receive its verified
+ * data as well.
+ */
+class BlockRequestCoalescer {
+
+    private val flightsByHash = mutableMapOf<String, Flight>()
+
+    /**
+     * Returns true if [owner] should request [block] for [download], or false if the block is already being
+     * requested and [download] was added to its waiters.
+     */
+    @Synchronized
+    internal fun join(download: BlockDownload, block: BlockInfo, owner: Any): Boolean {
+        val flight = flightsByHash[block.hash]
+        if (flight == null) {
+            flightsByHash[block.hash] = Flight(owner)
+            return true
+        }
+        flight.waiters.add(Waiter(download, block))
+        return false
+    }
+
+    /**
+     * Ends the request for [hash] after its data was received, returning the waiters to pass it to.
+     */
+    @Synchronized
+    internal fun complete(hash: String): List<Waiter> = flightsByHash.remove(hash)?.waiters ?: emptyList()
+
+    /**
+     * Ends the request of [owner] for [hash] after it failed, returning the waiters which have to request the block
+     * again.
+     */
+    @Synchronized
+    internal fun fail(hash: String, owner: Any): List<Waiter> {
+        val flight = flightsByHash[hash]
+        if (flight?.owner != owner) {
+            return emptyList()
+        }
+        flightsByHash.remove(hash)
+        return flight.waiters
+    }
+
+    private class Flight(val owner: Any) {
+        val waiters = mutableListOf<Waiter>()
+    }
+
+    internal class Waiter(val download: BlockDownload, val block: BlockInfo)
+}
@@ -0,0 +1,35 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * Destination for the verified blocks of a download.
+ */
+internal interface BlockSink : Closeable {
+
+    /**
+     * Stores [data] as the content of [block]. [data] may reference a pooled receive buffer, so it must be consumed
+     * or copied before returning.
+     */
+    @Throws(IOException::class)
+    fun write(block: BlockInfo, data: ByteBuffer)
+
+    /**
+     * Called once all blocks were written.
+     */
+    @Throws(IOException::class)
+    fun commit()
+
+    /**
+     * Returns the hashes of blocks which were stored by an earlier, interrupted download and need not be pulled
+     * again.
+     */
+    fun storedHashes(): Set<String> = emptySet()
+
+    @Throws(IOException::class)
+    fun inputStream(): InputStream
+}
@@ -0,0 +1,26 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import java.nio.ByteBuffer
+
+/**
+ * Source of block data that is checked before a block is requested from the network.
+ */
+internal interface BlockSource {
+
+    /**
+     * Returns the verified content of [block], or null if it is not available from this source.
+     */
+    fun readBlock(block: BlockInfo): ByteBuffer?
+
+    /**
+     * Passes the verified content of each of [blocks] available from this source to [onBlockRead], and returns the
+     * blocks which are not available. Sources with costly lookups override this to look up all blocks at once.
+     */
+    fun readBlocks(blocks: List<BlockInfo>, onBlockRead: (BlockInfo, ByteBuffer) -> Unit): List<BlockInfo> =
+            blocks.filter { block ->
+                val data = readBlock(block)
+                data?.let { onBlockRead(block, it) }
+                data == null
+            }
+}
@@ -0,0 +1,60 @@
+package net.syncthing.java.bep
+
+import java.util.*
+
+/**
+ * Pool of reusable byte arrays, to avoid allocating a new array for every message received from the network.
+ *
+ * Arrays are handed out in power of two size classes; arrays above [maxBufferSize] are never pooled, and the pool
+ * holds at most [maxPooledBytes] in total.
+ */
+internal class BufferPool(private val maxBufferSize: Int = DEFAULT_MAX_BUFFER_SIZE,
+                          private val maxPooledBytes: Long = DEFAULT_MAX_POOLED_BYTES) {
+
+    private val buffersBySizeClass = Array(sizeClass(maxBufferSize) + 1, { ArrayDeque<ByteArray>() })
+    private var pooledBytes: Long = 0
+
+    /**
+     * @return an array with at least [size] bytes, possibly containing stale data
+     */
+    fun acquire(size: Int): ByteArray {
+        if (size > maxBufferSize) {
+            return ByteArray(size)
+        }
+        val sizeClass = sizeClass(size)
+        synchronized(this) {
+            val buffer = buffersBySizeClass[sizeClass].pollFirst()
+            if (buffer != null) {
+                pooledBytes -= buffer.size
+                return buffer
+            }
+        }
+        return ByteArray(MIN_BUFFER_SIZE shl sizeClass)
+    }
+
+    /**
+     * Returns an array obtained from [acquire] to the pool. The caller must not use it afterwards.
+     */
+    fun release(buffer: ByteArray) {
+        if (buffer.size > maxBufferSize || Integer.bitCount(buffer.size) != 1 || buffer.size < MIN_BUFFER_SIZE) {
+            return
+        }
+        synchronized(this) {
+            if (pooledBytes + buffer.size <= maxPooledBytes) {
+                buffersBySizeClass[sizeClass(buffer.size)].addFirst(buffer)
+                pooledBytes += buffer.size
+            }
+        }
+    }
+
+    companion object {
+        private const val MIN_BUFFER_SIZE = 1024
+        // the power of two above the largest block, which leaves room for the message framing
+        private const val DEFAULT_MAX_BUFFER_SIZE = 2 * BlockPusher.MAX_BLOCK_SIZE
+        private const val DEFAULT_MAX_POOLED_BYTES = 2L * DEFAULT_MAX_BUFFER_SIZE
+
+        private fun sizeClass(size: Int): Int {
+            return if (size <= MIN_BUFFER_SIZE) 0 else 32 - Integer.numberOfLeadingZeros(size - 1) - 10
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package net.syncthing.java.bep
+
+/**
+ * Controls which outgoing BEP messages are LZ4 compressed.
+ *
+ * A message is only ever sent compressed if that actually makes it smaller, independently of the policy.
+ */
+enum class CompressionPolicy {
+
+    /**
+     * Never compress outgoing messages.
+     */
+    NEVER,
+
+    /**
+     * Compress everything except block data (ie [BlockExchangeProtos.Response] messages), like upstream syncthing.
+     */
+    METADATA,
+
+    /**
+     * Compress every message that is large enough to benefit from it.
+     */
+    ALWAYS,
+
+    /**
+     * Compress every message that is large enough, but stop compressing a message type while the achieved
+     * ratio is poor (eg block responses of already compressed media), probing again from time to time.
+     */
+    ADAPTIVE
+}
@@ -14,7 +14,9 @@
 package net.syncthing.java.bep
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.CodedInputStream
 import com.google.protobuf.MessageLite
+import net.jpountz.lz4.LZ4Exception
 import net.jpountz.lz4.LZ4Factory
 import net.syncthing.java.bep.BlockExchangeProtos.*
 import net.syncthing.java.client.protocol.rp.RelayClient
@@ -28,46 +30,102 @@ import net.syncthing.java.core.utils.NetworkUtils
 import net.syncthing.java.core.utils.submitLogging
 import net.syncthing.java.httprelay.HttpRelayClient
 import org.apache.commons.io.IOUtils
-import org.apache.commons.lang3.tuple.Pair
 import org.slf4j.LoggerFactory
 import java.io.Closeable
 import java.io.DataInputStream
-import java.io.DataOutputStream
 import java.io.IOException
+import java.io.InterruptedIOException
 import java.lang.reflect.InvocationTargetException
 import java.nio.ByteBuffer
 import java.security.cert.CertificateException
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ThreadFactory
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import javax.net.ssl.SSLSocket
 
 class ConnectionHandler(private val configuration: Configuration, val address: DeviceAddress,
                         private val indexHandler: IndexHandler,
                         private val onNewFolderSharedListener: (ConnectionHandler, FolderInfo) -> Unit,
-                        private val onConnectionChangedListener: (ConnectionHandler) -> Unit) : Closeable {
+                        private val onConnectionChangedListener: (ConnectionHandler) -> Unit,
+                        compressionPolicy: CompressionPolicy = CompressionPolicy.ADAPTIVE,
+                        private val connectionEngine: NioConnectionEngine? = null,
+                        blockCache: BlockCache? = null,
+                        requestCoalescer: BlockRequestCoalescer = BlockRequestCoalescer(),
+                        bandwidthLimiters: List<BandwidthLimiter> = emptyList()) : Closeable {
 
     private val logger = LoggerFactory.getLogger(javaClass)
 
     private val outExecutorService = Executors.newSingleThreadExecutor()
     private val inExecutorService = Executors.newSingleThreadExecutor()
-    private val messageProcessingService = Executors.newCachedThreadPool()
-    private val periodicExecutorService = Executors.newSingleThreadScheduledExecutor()
+    private val messageProcessingService = connectionEngine?.processingExecutorService ?: Executors.newCachedThreadPool()
+    // on the shared pool of the engine, the messages of a connection are processed one at a time
+    private val serialProcessingExecutor = connectionEngine?.let { SerialExecutor(messageProcessingService) }
+    private val messageProcessingExecutor: Executor = serialProcessingExecutor ?: Executor { messageProcessingService.submitLogging(it) }
+    private val processingBacklogLock = Object()
+    private var processingBacklogBytes = 0L
+    private var isProcessingBacklogFull = false
+    private var isOutboundBacklogFull = false
+    private var isReadingPaused = false
+    private val periodicExecutorService = Executors.newSingleThreadScheduledExecutor(nonBlockingThreadFactory("bep-timer"))
+    internal val scheduledExecutorService: ScheduledExecutorService = connectionEngine?.periodicExecutorService ?: periodicExecutorService
     private lateinit var socket: SSLSocket
     private var inputStream: DataInputStream? = null
-    private var outputStream: DataOutputStream? = null
+    private var messageWriter: MessageWriter? = null
+    private var nioConnection: NioConnectionEngine.Connection? = null
+    private var nioMessageReader: NioMessageReader? = null
+    private var pingFuture: ScheduledFuture<*>? = null
+    private var receivedHello: BlockExchangeProtos.Hello? = null
+    private val helloWaitingLock = Object()
+    private var headerBuffer = ByteArray(64)
     private var lastActive = Long.MIN_VALUE
     internal var clusterConfigInfo: ClusterConfigInfo? = null
         private set
     private val clusterConfigWaitingLock = Object()
-    private val blockPuller = BlockPuller(this, indexHandler)
+    private val blockPuller = BlockPuller(this, indexHandler, blockCache, requestCoalescer)
     private val blockPusher = BlockPusher(configuration.localDeviceId, this, indexHandler)
     private val onRequestMessageReceivedListeners = mutableSetOf<(Request) -> Unit>()
+    private val messageCompressor = MessageCompressor(compressionPolicy)
+    private val outboundQueue = OutboundQueue(DEFAULT_MAX_QUEUED_BYTES, { onOutboundBacklogChanged() })
+    private val uploadLimiters = bandwidthLimiters.map { it.upload }
+    private val downloadLimiters = bandwidthLimiters.map { it.download }
     private var isClosed = false
     var isConnected = false
         private set
 
+    var compressionPolicy: CompressionPolicy
+        get() = messageCompressor.policy
+        set(value) {
+            messageCompressor.policy = value
+        }
+
+    /**
+     * Maximum size of messages waiting to be written to this connection.
+     */
+    var maxQueuedBytes: Long
+        get() = outboundQueue.maxQueuedBytes
+        set(value) {
+            outboundQueue.maxQueuedBytes = value
+        }
+
+    /**
+     * If set, messages sent while the outbound queue is full fail with [RejectedExecutionException] instead of
+     * blocking the sender until enough queued data was written.
+     */
+    @Volatile var rejectWhenQueueFull = false
+
+    val queuedBytes: Long
+        get() = outboundQueue.queuedBytes
+
+    val queuedMessages: Int
+        get() = outboundQueue.queuedMessages
+
     fun deviceId(): DeviceId = address.deviceId()
 
     private fun checkNotClosed() {
@@ -91,23 +149,16 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
 
         val keystoreHandler = KeystoreHandler.Loader().loadKeystore(configuration)
 
-        socket = when (address.getType()) {
-            DeviceAddress.AddressType.TCP -> {
-                logger.debug("opening tcp ssl connection")
-                keystoreHandler.createSocket(address.getSocketAddress(), KeystoreHandler.BEP)
-            }
-            DeviceAddress.AddressType.RELAY -> {
-                logger.debug("opening relay connection")
-                keystoreHandler.wrapSocket(RelayClient(configuration).openRelayConnection(address), KeystoreHandler.BEP)
-            }
-            DeviceAddress.AddressType.HTTP_RELAY, DeviceAddress.AddressType.HTTPS_RELAY -> {
-                logger.debug("opening http relay connection")
-                keystoreHandler.wrapSocket(HttpRelayClient().openRelayConnection(address), KeystoreHandler.BEP)
-            }
-            else -> throw UnsupportedOperationException("unsupported address type = " + address.getType())
+        if (connectionEngine != null && address.getType() == DeviceAddress.AddressType.TCP) {
+            logger.debug("opening non-blocking tcp ssl connection")
+            val messageReader = NioMessageReader()
+            nioMessageReader = messageReader
+            nioConnection = connectionEngine.connect(address.getSocketAddress(),
+                    keystoreHandler.createSSLEngine(address.getSocketAddress()), messageReader,
+                    downloadLimiters, uploadLimiters)
+        } else {
+            openSocket(keystoreHandler)
         }
-        inputStream = DataInputStream(socket.inputStream)
-        outputStream = DataOutputStream(socket.outputStream)
 
         sendHelloMessage(BlockExchangeProtos.Hello.newBuilder()
                 .setClientName(configuration.clientName)
@@ -118,7 +169,12 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
 
         receiveHelloMessage()
         try {
-            keystoreHandler.checkSocketCertificate(socket, address.deviceId())
+            val nioConnection = nioConnection
+            if (nioConnection != null) {
+                keystoreHandler.checkSessionCertificate(nioConnection.session, address.deviceId())
+            } else {
+                keystoreHandler.checkSocketCertificate(socket, address.deviceId())
+            }
         } catch (e: CertificateException) {
             throw IOException(e)
         }
@@ -177,12 +233,40 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
                 sendIndexMessage(folder.folderId)
             }
         }
-        periodicExecutorService.scheduleWithFixedDelay({ this.sendPing() }, 90, 90, TimeUnit.SECONDS)
+        pingFuture = scheduledExecutorService.scheduleWithFixedDelay({ this.sendPing() }, 90, 90, TimeUnit.SECONDS)
         isConnected = true
         onConnectionChangedListener(this)
         return this
     }
 
+    @Throws(IOException::class, KeystoreHandler.CryptoException::class)
+    private fun openSocket(keystoreHandler: KeystoreHandler) {
+        socket = when (address.getType()) {
+            DeviceAddress.AddressType.TCP -> {
+                logger.debug("opening tcp ssl connection")
+                keystoreHandler.createSocket(address.getSocketAddress(), KeystoreHandler.BEP)
+            }
+            DeviceAddress.AddressType.RELAY -> {
+                logger.debug("opening relay connection")
+                keystoreHandler.wrapSocket(RelayClient(configuration).openRelayConnection(address), KeystoreHandler.BEP)
+            }
+            DeviceAddress.AddressType.HTTP_RELAY, DeviceAddress.AddressType.HTTPS_RELAY -> {
+                logger.debug("opening http relay connection")
+                keystoreHandler.wrapSocket(HttpRelayClient().openRelayConnection(address), KeystoreHandler.BEP)
+            }
+            else -> throw UnsupportedOperationException("unsupported address type = " + address.getType())
+        }
+        val socketInputStream = if (downloadLimiters.isEmpty()) socket.inputStream else RateLimitedInputStream(socket.inputStream, downloadLimiters)
+        val socketOutputStream = if (uploadLimiters.isEmpty()) socket.outputStream else RateLimitedOutputStream(socket.outputStream, uploadLimiters)
+        inputStream = DataInputStream(socketInputStream)
+        messageWriter = MessageWriter(socketOutputStream, outExecutorService, { ex ->
+            if (!outExecutorService.isShutdown) {
+                logger.error("error writing to output stream", ex)
+                closeBg()
+            }
+        })
+    }
+
     fun getBlockPuller(): BlockPuller {
         return blockPuller
     }
@@ -206,13 +290,7 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
      */
     @Throws(IOException::class)
     private fun receiveHelloMessage() {
-        val magic = inputStream!!.readInt()
-        NetworkUtils.assertProtocol(magic == MAGIC, {"magic mismatch, expected $MAGIC, got $magic"})
-        val length = inputStream!!.readShort().toInt()
-        NetworkUtils.assertProtocol(length > 0, {"invalid lenght, must be >0, got $length"})
-        val buffer = ByteArray(length)
-        inputStream!!.readFully(buffer)
-        val hello = BlockExchangeProtos.Hello.parseFrom(buffer)
+        val hello = if (nioMessageReader != null) waitForHelloMessage() else readHelloMessage()
         logger.info("Received hello message, deviceName=${hello.deviceName}, clientName=${hello.clientName}, clientVersion=${hello.clientVersion}")
         configuration.peers = configuration.peers.map { peer ->
                 if (peer.deviceId == deviceId()) {
@@ -224,26 +302,50 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
         configuration.persistLater()
     }
 
-    private fun sendHelloMessage(payload: ByteArray): Future<*> {
-        return outExecutorService.submitLogging {
-            try {
-                logger.debug("Sending hello message")
-                val header = ByteBuffer.allocate(6)
-                header.putInt(MAGIC)
-                header.putShort(payload.size.toShort())
-                outputStream!!.write(header.array())
-                outputStream!!.write(payload)
-                outputStream!!.flush()
-            } catch (ex: IOException) {
-                if (outExecutorService.isShutdown) {
-                    return@submitLogging
+    @Throws(IOException::class)
+    private fun readHelloMessage(): BlockExchangeProtos.Hello {
+        val magic = inputStream!!.readInt()
+        NetworkUtils.assertProtocol(magic == MAGIC, {"magic mismatch, expected $MAGIC, got $magic"})
+        val length = inputStream!!.readShort().toInt()
+        NetworkUtils.assertProtocol(length > 0, {"invalid lenght, must be >0, got $length"})
+        val buffer = ByteArray(length)
+        inputStream!!.readFully(buffer)
+        return BlockExchangeProtos.Hello.parseFrom(buffer)
+    }
+
+    @Throws(IOException::class)
+    private fun waitForHelloMessage(): BlockExchangeProtos.Hello {
+        val timeout = System.currentTimeMillis() + HELLO_TIMEOUT_MILLIS
+        synchronized(helloWaitingLock) {
+            while (receivedHello == null && !isClosed && !nioConnection!!.isClosed && System.currentTimeMillis() < timeout) {
+                try {
+                    helloWaitingLock.wait(Math.max(1, timeout - System.currentTimeMillis()))
+                } catch (e: InterruptedException) {
+                    throw IOException(e)
                 }
-                logger.error("error writing to output stream", ex)
-                closeBg()
             }
+            return receivedHello ?: throw IOException("unable to retrieve hello message from peer!")
         }
     }
 
+    private fun sendHelloMessage(payload: ByteArray): Future<*> {
+        val nioConnection = nioConnection
+        if (nioConnection != null) {
+            logger.debug("Sending hello message")
+            val frame = ByteBuffer.allocate(6 + payload.size)
+            frame.putInt(MAGIC)
+            frame.putShort(payload.size.toShort())
+            frame.put(payload)
+            frame.flip()
+            return nioConnection.write(frame)
+        }
+        logger.debug("Sending hello message")
+        val header = ByteBuffer.allocate(6)
+        header.putInt(MAGIC)
+        header.putShort(payload.size.toShort())
+        return messageWriter!!.write(header.array(), payload)
+    }
+
     private fun sendPing(): Future<*> {
         return sendMessage(Ping.newBuilder().build())
     }
@@ -253,7 +355,7 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
     }
 
     @Throws(IOException::class)
-    private fun receiveMessage(): Pair<BlockExchangeProtos.MessageType, MessageLite> {
+    private fun receiveMessage(): ReceivedMessage {
         var headerLength = inputStream!!.readShort().toInt()
         while (headerLength == 0) {
             logger.warn("got headerLength == 0, skipping short")
@@ -261,83 +363,161 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
         }
         markActivityOnSocket()
         NetworkUtils.assertProtocol(headerLength > 0, {"invalid lenght, must be >0, got $headerLength"})
-        val headerBuffer = ByteArray(headerLength)
-        inputStream!!.readFully(headerBuffer)
-        val header = BlockExchangeProtos.Header.parseFrom(headerBuffer)
+        if (headerBuffer.size < headerLength) {
+            headerBuffer = ByteArray(headerLength)
+        }
+        inputStream!!.readFully(headerBuffer, 0, headerLength)
+        val header = BlockExchangeProtos.Header.parseFrom(CodedInputStream.newInstance(headerBuffer, 0, headerLength))
         var messageLength = 0
         while (messageLength == 0) {
             logger.warn("received readInt() == 0, expecting 'bep message header length' (int >0), ignoring (keepalive?)")
             messageLength = inputStream!!.readInt()
         }
         NetworkUtils.assertProtocol(messageLength >= 0, {"invalid lenght, must be >=0, got $messageLength"})
-        var messageBuffer = ByteArray(messageLength)
-        inputStream!!.readFully(messageBuffer)
+        val messageBuffer = bufferPool.acquire(messageLength)
+        inputStream!!.readFully(messageBuffer, 0, messageLength)
         markActivityOnSocket()
-        if (header.compression == BlockExchangeProtos.MessageCompression.LZ4) {
-            val uncompressedLength = ByteBuffer.wrap(messageBuffer).int
-            messageBuffer = LZ4Factory.fastestInstance().fastDecompressor().decompress(messageBuffer, 4, uncompressedLength)
-        }
-        val messageTypeInfo = messageTypesByProtoMessageType[header.type]
-        NetworkUtils.assertProtocol(messageTypeInfo != null, {"unsupported message type = ${header.type}"})
+        return decodeMessage(header, messageBuffer, messageLength)
+    }
+
+    /**
+     * Decompress and parse a message read into a pooled buffer. The buffer is released once the message was parsed.
+     */
+    @Throws(IOException::class)
+    private fun decodeMessage(header: BlockExchangeProtos.Header, buffer: ByteArray, length: Int): ReceivedMessage {
+        var messageBuffer = buffer
+        var messageLength = length
         try {
-            val message = messageTypeInfo!!.parseFrom(messageBuffer)
-            return Pair.of(header.type, message)
+            if (header.compression == BlockExchangeProtos.MessageCompression.LZ4) {
+                val uncompressedLength = ByteBuffer.wrap(messageBuffer).int
+                NetworkUtils.assertProtocol(uncompressedLength >= 0, {"invalid uncompressed lenght, must be >=0, got $uncompressedLength"})
+                val uncompressedBuffer = bufferPool.acquire(uncompressedLength)
+                try {
+                    lz4Decompressor.decompress(messageBuffer, 4, uncompressedBuffer, 0, uncompressedLength)
+                } catch (ex: Exception) {
+                    bufferPool.release(uncompressedBuffer)
+                    throw ex
+                }
+                bufferPool.release(messageBuffer)
+                messageBuffer = uncompressedBuffer
+                messageLength = uncompressedLength
+            }
+            val messageTypeInfo = messageTypesByProtoMessageType[header.type]
+            NetworkUtils.assertProtocol(messageTypeInfo != null, {"unsupported message type = ${header.type}"})
+            val message = messageTypeInfo!!.parseFrom(CodedInputStream.newInstance(messageBuffer, 0, messageLength))
+            bufferPool.release(messageBuffer)
+            return ReceivedMessage(header.type, message)
         } catch (e: Exception) {
+            bufferPool.release(messageBuffer)
             when (e) {
-                is IllegalAccessException, is IllegalArgumentException, is InvocationTargetException, is NoSuchMethodException, is SecurityException ->
+                is IllegalAccessException, is IllegalArgumentException, is InvocationTargetException, is NoSuchMethodException, is SecurityException, is LZ4Exception ->
                     throw IOException(e)
                 else -> throw e
             }
         }
     }
 
-    internal fun sendMessage(message: MessageLite): Future<*> {
+    /**
+     * Queues [message] for sending. If the outbound queue is full, the caller waits until enough queued data was
+     * written, unless [rejectWhenQueueFull] is set. On threads shared by all connections and on timer threads the
+     * message is deferred instead, so a slow connection holds up neither the other connections nor the timers.
+     */
+    internal fun sendMessage(message: MessageLite): Future<*> =
+            if (isNonBlockingThread.get()) sendMessageDeferred(message) else sendMessage(message, !rejectWhenQueueFull)
+
+    private fun sendMessage(message: MessageLite, blockWhenQueueFull: Boolean): Future<*> {
+        checkNotClosed()
+        // compressed data is never larger, so reserving the uncompressed size before serializing is enough
+        val queuedSize = message.serializedSize
+        try {
+            if (!outboundQueue.acquire(queuedSize, blockWhenQueueFull)) {
+                val future = WriteFuture()
+                future.setException(RejectedExecutionException("outbound queue of $this is full"))
+                return future
+            }
+        } catch (ex: IOException) {
+            val future = WriteFuture()
+            future.setException(ex)
+            return future
+        }
+        return writeFrame(encodeMessage(message), WriteFuture({ outboundQueue.release(queuedSize) }))
+    }
+
+    /**
+     * Sends [message] without waiting for space in the outbound queue. If the queue is full, the message is written
+     * after the messages queued before it, and the connection stops processing received messages until then.
+     */
+    private fun sendMessageDeferred(message: MessageLite): Future<*> {
         checkNotClosed()
+        val queuedSize = message.serializedSize
+        val frame = encodeMessage(message)
+        var isAcquired = false
+        val future = WriteFuture({
+            if (isAcquired) {
+                outboundQueue.release(queuedSize)
+            }
+        })
+        try {
+            outboundQueue.acquireOrDefer(queuedSize, {
+                isAcquired = true
+                writeFrame(frame, future)
+            }, { error -> future.setException(error) })
+        } catch (ex: IOException) {
+            future.setException(ex)
+        }
+        return future
+    }
+
+    private fun encodeMessage(message: MessageLite): Frame {
         val messageTypeInfo = messageTypesByJavaClass[message.javaClass]
         messageTypeInfo!!
+        val uncompressedData = message.toByteArray()
+        val compressedData = messageCompressor.compress(messageTypeInfo.protoMessageType, uncompressedData)
         val header = BlockExchangeProtos.Header.newBuilder()
-                .setCompression(BlockExchangeProtos.MessageCompression.NONE)
+                .setCompression(if (compressedData != null) BlockExchangeProtos.MessageCompression.LZ4 else BlockExchangeProtos.MessageCompression.NONE)
                 // invert map
                 .setType(messageTypeInfo.protoMessageType)
                 .build()
         val headerData = header.toByteArray()
-        val messageData = message.toByteArray() //TODO compression
-        return outExecutorService.submit<Any> {
-            try {
-                logger.debug("sending message type = {} {}", header.type, getIdForMessage(message))
-                markActivityOnSocket()
-                outputStream!!.writeShort(headerData.size)
-                outputStream!!.write(headerData)
-                outputStream!!.writeInt(messageData.size)//with compression, check this
-                outputStream!!.write(messageData)
-                outputStream!!.flush()
-                markActivityOnSocket()
-            } catch (ex: IOException) {
-                if (!outExecutorService.isShutdown) {
-                    logger.error("error writing to output stream", ex)
-                    closeBg()
-                }
-                throw ex
-            }
+        val messageData = compressedData ?: uncompressedData
+        logger.debug("sending message type = {} {}", header.type, getIdForMessage(message))
+        val prefix = ByteBuffer.allocate(2 + headerData.size + 4)
+        prefix.putShort(headerData.size.toShort())
+        prefix.put(headerData)
+        prefix.putInt(messageData.size)
+        return Frame(prefix.array(), messageData)
+    }
 
-            null
+    private fun writeFrame(frame: Frame, future: WriteFuture): Future<*> {
+        markActivityOnSocket()
+        val nioConnection = nioConnection
+        if (nioConnection != null) {
+            val data = ByteBuffer.allocate(frame.prefix.size + frame.payload.size)
+            data.put(frame.prefix)
+            data.put(frame.payload)
+            data.flip()
+            return nioConnection.write(data, future)
         }
+        return messageWriter!!.write(frame.prefix, frame.payload, future)
     }
 
     override fun close() {
         if (!isClosed) {
-            sendMessage(Close.getDefaultInstance())
+            sendMessage(Close.getDefaultInstance(), false)
             isClosed = true
+            outboundQueue.close()
             isConnected = false
+            pingFuture?.cancel(false)
             periodicExecutorService.shutdown()
             outExecutorService.shutdown()
             inExecutorService.shutdown()
-            messageProcessingService.shutdown()
-            assert(onRequestMessageReceivedListeners.isEmpty())
-            if (outputStream != null) {
-                IOUtils.closeQuietly(outputStream)
-                outputStream = null
+            if (connectionEngine == null) {
+                messageProcessingService.shutdown()
             }
+            assert(onRequestMessageReceivedListeners.isEmpty())
+            blockPuller.onConnectionClosed()
+            nioConnection?.close()
+            messageWriter?.let { IOUtils.closeQuietly(it) }
             if (inputStream != null) {
                 IOUtils.closeQuietly(inputStream)
                 inputStream = null
@@ -353,12 +533,20 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
             synchronized(clusterConfigWaitingLock) {
                 clusterConfigWaitingLock.notifyAll()
             }
+            synchronized(helloWaitingLock) {
+                helloWaitingLock.notifyAll()
+            }
+            synchronized(processingBacklogLock) {
+                processingBacklogLock.notifyAll()
+            }
             onConnectionChangedListener(this)
             try {
                 periodicExecutorService.awaitTermination(2, TimeUnit.SECONDS)
                 outExecutorService.awaitTermination(2, TimeUnit.SECONDS)
                 inExecutorService.awaitTermination(2, TimeUnit.SECONDS)
-                messageProcessingService.awaitTermination(2, TimeUnit.SECONDS)
+                if (connectionEngine == null) {
+                    messageProcessingService.awaitTermination(2, TimeUnit.SECONDS)
+                }
             } catch (ex: InterruptedException) {
                 logger.warn("", ex)
             }
@@ -376,71 +564,17 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
     }
 
     private fun startMessageListenerService() {
+        val nioMessageReader = nioMessageReader
+        if (nioMessageReader != null) {
+            nioMessageReader.startDispatching()
+            return
+        }
         inExecutorService.submitLogging {
             try {
                 while (!Thread.interrupted()) {
+                    awaitProcessingBacklog()
                     val message = receiveMessage()
-                    messageProcessingService.submitLogging {
-                        logger.debug("received message type = {} {}", message.left, getIdForMessage(message.right))
-                        when (message.left) {
-                            BlockExchangeProtos.MessageType.INDEX -> {
-                                val index = message.value as Index
-                                indexHandler.handleIndexMessageReceivedEvent(index.folder, index.filesList, this)
-                            }
-                            BlockExchangeProtos.MessageType.INDEX_UPDATE -> {
-                                val update = message.value as IndexUpdate
-                                indexHandler.handleIndexMessageReceivedEvent(update.folder, update.filesList, this)
-                            }
-                            BlockExchangeProtos.MessageType.REQUEST -> {
-                                onRequestMessageReceivedListeners.forEach { it(message.value as Request) }
-                            }
-                            BlockExchangeProtos.MessageType.RESPONSE -> {
-                                blockPuller.onResponseMessageReceived(message.value as Response)
-                            }
-                            BlockExchangeProtos.MessageType.PING -> logger.debug("ping message received")
-                            BlockExchangeProtos.MessageType.CLOSE -> {
-                                val close = message.value as BlockExchangeProtos.Close
-                                logger.info("received close message, reason=${close.reason}")
-                                closeBg()
-                            }
-                            BlockExchangeProtos.MessageType.CLUSTER_CONFIG -> {
-                                NetworkUtils.assertProtocol(clusterConfigInfo == null, {"received cluster config message twice!"})
-                                clusterConfigInfo = ClusterConfigInfo()
-                                val clusterConfig = message.value as ClusterConfig
-                                for (folder in clusterConfig.foldersList ?: emptyList()) {
-                                    val folderInfo = ClusterConfigFolderInfo(folder.id, folder.label)
-                                    val devicesById = (folder.devicesList ?: emptyList())
-                                            .associateBy { input ->
-                                                DeviceId.fromHashData(input.id!!.toByteArray())
-                                            }
-                                    val otherDevice = devicesById[address.deviceId()]
-                                    val ourDevice = devicesById[configuration.localDeviceId]
-                                    if (otherDevice != null) {
-                                        folderInfo.isAnnounced = true
-                                    }
-                                    if (ourDevice != null) {
-                                        folderInfo.isShared = true
-                                        logger.info("folder shared from device = {} folder = {}", address.deviceId, folderInfo)
-                                        val folderIds = configuration.folders.map { it.folderId }
-                                        if (!folderIds.contains(folderInfo.folderId)) {
-                                            val fi = FolderInfo(folderInfo.folderId, folderInfo.label)
-                                            configuration.folders = configuration.folders + fi
-                                            onNewFolderSharedListener(this, fi)
-                                            logger.info("new folder shared = {}", folderInfo)
-                                        }
-                                    } else {
-                                        logger.info("folder not shared from device = {} folder = {}", address.deviceId, folderInfo)
-                                    }
-                                    clusterConfigInfo!!.putFolderInfo(folderInfo)
-                                }
-                                configuration.persistLater()
-                                indexHandler.handleClusterConfigMessageProcessedEvent(clusterConfig)
-                                synchronized(clusterConfigWaitingLock) {
-                                    clusterConfigWaitingLock.notifyAll()
-                                }
-                            }
-                        }
-                    }
+                    submitProcessing(message.message.serializedSize, { processMessage(message) })
                 }
             } catch (ex: IOException) {
                 if (inExecutorService.isShutdown) {
@@ -452,6 +586,290 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
         }
     }
 
+    /**
+     * Processes a received message of about [size] bytes on [messageProcessingExecutor]. Once the messages waiting
+     * for processing exceed [MAX_PROCESSING_BACKLOG_BYTES], reading from the connection pauses until half of them
+     * were processed, so a fast peer can not fill the heap.
+     */
+    private fun submitProcessing(size: Int, task: () -> Unit) {
+        synchronized(processingBacklogLock) {
+            processingBacklogBytes += size
+            if (processingBacklogBytes > MAX_PROCESSING_BACKLOG_BYTES) {
+                isProcessingBacklogFull = true
+                updateReadingPausedLocked()
+            }
+        }
+        messageProcessingExecutor.execute {
+            try {
+                task()
+            } finally {
+                synchronized(processingBacklogLock) {
+                    processingBacklogBytes -= size
+                    if (processingBacklogBytes <= MAX_PROCESSING_BACKLOG_BYTES / 2) {
+                        isProcessingBacklogFull = false
+                        updateReadingPausedLocked()
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * While messages sent from non-blocking threads wait for space in the outbound queue, processing and reading
+     * pause, so that requests from the peer are held back instead of piling up responses which can not be sent.
+     */
+    private fun onOutboundBacklogChanged() {
+        synchronized(processingBacklogLock) {
+            val isFull = outboundQueue.hasDeferredMessages && !isClosed
+            if (isFull != isOutboundBacklogFull) {
+                isOutboundBacklogFull = isFull
+                if (isFull) {
+                    serialProcessingExecutor?.pause()
+                } else {
+                    serialProcessingExecutor?.resume()
+                }
+                updateReadingPausedLocked()
+            }
+        }
+    }
+
+    private fun updateReadingPausedLocked() {
+        val isPaused = isProcessingBacklogFull || isOutboundBacklogFull
+        if (isPaused != isReadingPaused) {
+            isReadingPaused = isPaused
+            nioConnection?.setReadPaused(isPaused)
+            if (!isPaused) {
+                processingBacklogLock.notifyAll()
+            }
+        }
+    }
+
+    /**
+     * Waits while reading is paused, for the blocking socket.
+     */
+    @Throws(InterruptedIOException::class)
+    private fun awaitProcessingBacklog() {
+        synchronized(processingBacklogLock) {
+            while (isReadingPaused && !isClosed) {
+                try {
+                    processingBacklogLock.wait()
+                } catch (ex: InterruptedException) {
+                    throw InterruptedIOException()
+                }
+            }
+        }
+    }
+
+    private fun processMessage(message: ReceivedMessage) {
+        logger.debug("received message type = {} {}", message.type, getIdForMessage(message.message))
+        when (message.type) {
+            BlockExchangeProtos.MessageType.INDEX -> {
+                val index = message.message as Index
+                indexHandler.handleIndexMessageReceivedEvent(index.folder, index.filesList, this)
+            }
+            BlockExchangeProtos.MessageType.INDEX_UPDATE -> {
+                val update = message.message as IndexUpdate
+                indexHandler.handleIndexMessageReceivedEvent(update.folder, update.filesList, this)
+            }
+            BlockExchangeProtos.MessageType.REQUEST -> {
+                onRequestMessageReceivedListeners.forEach { it(message.message as Request) }
+            }
+            BlockExchangeProtos.MessageType.RESPONSE -> {
+                blockPuller.onResponseMessageReceived(message.message as Response)
+            }
+            BlockExchangeProtos.MessageType.PING -> logger.debug("ping message received")
+            BlockExchangeProtos.MessageType.CLOSE -> {
+                val close = message.message as BlockExchangeProtos.Close
+                logger.info("received close message, reason=${close.reason}")
+                closeBg()
+            }
+            BlockExchangeProtos.MessageType.CLUSTER_CONFIG -> {
+                NetworkUtils.assertProtocol(clusterConfigInfo == null, {"received cluster config message twice!"})
+                clusterConfigInfo = ClusterConfigInfo()
+                val clusterConfig = message.message as ClusterConfig
+                for (folder in clusterConfig.foldersList ?: emptyList()) {
+                    val folderInfo = ClusterConfigFolderInfo(folder.id, folder.label)
+                    val devicesById = (folder.devicesList ?: emptyList())
+                            .associateBy { input ->
+                                DeviceId.fromHashData(input.id!!.toByteArray())
+                            }
+                    val otherDevice = devicesById[address.deviceId()]
+                    val ourDevice = devicesById[configuration.localDeviceId]
+                    if (otherDevice != null) {
+                        folderInfo.isAnnounced = true
+                    }
+                    if (ourDevice != null) {
+                        folderInfo.isShared = true
+                        logger.info("folder shared from device = {} folder = {}", address.deviceId, folderInfo)
+                        val folderIds = configuration.folders.map { it.folderId }
+                        if (!folderIds.contains(folderInfo.folderId)) {
+                            val fi = FolderInfo(folderInfo.folderId, folderInfo.label)
+                            configuration.folders = configuration.folders + fi
+                            onNewFolderSharedListener(this, fi)
+                            logger.info("new folder shared = {}", folderInfo)
+                        }
+                    } else {
+                        logger.info("folder not shared from device = {} folder = {}", address.deviceId, folderInfo)
+                    }
+                    clusterConfigInfo!!.putFolderInfo(folderInfo)
+                }
+                configuration.persistLater()
+                indexHandler.handleClusterConfigMessageProcessedEvent(clusterConfig)
+                synchronized(clusterConfigWaitingLock) {
+                    clusterConfigWaitingLock.notifyAll()
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes BEP framing from the decrypted data of a [NioConnectionEngine] connection. Messages are held back until
+     * [startDispatching] is called, ie until the peer certificate has been checked.
+     */
+    private inner class NioMessageReader : NioConnectionEngine.Listener {
+
+        private val lengthBuffer = ByteBuffer.allocate(6)
+        private var state = ReaderState.HELLO_LENGTH
+        private var frame = ByteArray(0)
+        private var frameLength = 0
+        private var framePosition = 0
+        private var header: BlockExchangeProtos.Header? = null
+        private val heldFrames = mutableListOf<ReceivedFrame>()
+        private var isDispatching = false
+
+        override fun onDataReceived(data: ByteBuffer) {
+            markActivityOnSocket()
+            while (data.hasRemaining()) {
+                when (state) {
+                    ReaderState.HELLO_LENGTH -> if (readLength(data, 6)) {
+                        val magic = lengthBuffer.int
+                        val length = lengthBuffer.short.toInt()
+                        lengthBuffer.clear()
+                        NetworkUtils.assertProtocol(magic == MAGIC, {"magic mismatch, expected $MAGIC, got $magic"})
+                        NetworkUtils.assertProtocol(length > 0, {"invalid lenght, must be >0, got $length"})
+                        startFrame(ByteArray(length), length, ReaderState.HELLO)
+                    }
+                    ReaderState.HELLO -> if (readFrame(data)) {
+                        val hello = BlockExchangeProtos.Hello.parseFrom(CodedInputStream.newInstance(frame, 0, frameLength))
+                        synchronized(helloWaitingLock) {
+                            receivedHello = hello
+                            helloWaitingLock.notifyAll()
+                        }
+                        state = ReaderState.HEADER_LENGTH
+                    }
+                    ReaderState.HEADER_LENGTH -> if (readLength(data, 2)) {
+                        val headerLength = lengthBuffer.short.toInt()
+                        lengthBuffer.clear()
+                        if (headerLength == 0) {
+                            logger.warn("got headerLength == 0, skipping short")
+                        } else {
+                            NetworkUtils.assertProtocol(headerLength > 0, {"invalid lenght, must be >0, got $headerLength"})
+                            if (headerBuffer.size < headerLength) {
+                                headerBuffer = ByteArray(headerLength)
+                            }
+                            startFrame(headerBuffer, headerLength, ReaderState.HEADER)
+                        }
+                    }
+                    ReaderState.HEADER -> if (readFrame(data)) {
+                        header = BlockExchangeProtos.Header.parseFrom(CodedInputStream.newInstance(frame, 0, frameLength))
+                        state = ReaderState.MESSAGE_LENGTH
+                    }
+                    ReaderState.MESSAGE_LENGTH -> if (readLength(data, 4)) {
+                        val messageLength = lengthBuffer.int
+                        lengthBuffer.clear()
+                        if (messageLength == 0) {
+                            logger.warn("received readInt() == 0, expecting 'bep message header length' (int >0), ignoring (keepalive?)")
+                        } else {
+                            NetworkUtils.assertProtocol(messageLength > 0, {"invalid lenght, must be >=0, got $messageLength"})
+                            startFrame(bufferPool.acquire(messageLength), messageLength, ReaderState.MESSAGE)
+                        }
+                    }
+                    ReaderState.MESSAGE -> if (readFrame(data)) {
+                        onFrameReceived(ReceivedFrame(header!!, frame, frameLength))
+                        state = ReaderState.HEADER_LENGTH
+                    }
+                }
+            }
+        }
+
+        override fun onClosed(error: IOException?) {
+            synchronized(helloWaitingLock) {
+                helloWaitingLock.notifyAll()
+            }
+            if (error != null && !isClosed) {
+                logger.error("error receiving message", error)
+                closeBg()
+            }
+        }
+
+        fun startDispatching() {
+            val frames = synchronized(heldFrames) {
+                isDispatching = true
+                val list = heldFrames.toList()
+                heldFrames.clear()
+                list
+            }
+            frames.forEach { dispatch(it) }
+        }
+
+        private fun onFrameReceived(receivedFrame: ReceivedFrame) {
+            synchronized(heldFrames) {
+                if (!isDispatching) {
+                    heldFrames.add(receivedFrame)
+                    return
+                }
+            }
+            dispatch(receivedFrame)
+        }
+
+        private fun dispatch(receivedFrame: ReceivedFrame) {
+            submitProcessing(receivedFrame.length, {
+                val message = try {
+                    decodeMessage(receivedFrame.header, receivedFrame.buffer, receivedFrame.length)
+                } catch (ex: IOException) {
+                    logger.error("error receiving message", ex)
+                    closeBg()
+                    null
+                }
+                message?.let { processMessage(it) }
+            })
+        }
+
+        private fun readLength(data: ByteBuffer, length: Int): Boolean {
+            lengthBuffer.limit(length)
+            while (lengthBuffer.hasRemaining() && data.hasRemaining()) {
+                lengthBuffer.put(data.get())
+            }
+            if (lengthBuffer.hasRemaining()) {
+                return false
+            }
+            lengthBuffer.flip()
+            return true
+        }
+
+        private fun startFrame(buffer: ByteArray, length: Int, newState: ReaderState) {
+            frame = buffer
+            frameLength = length
+            framePosition = 0
+            state = newState
+        }
+
+        private fun readFrame(data: ByteBuffer): Boolean {
+            val count = Math.min(data.remaining(), frameLength - framePosition)
+            data.get(frame, framePosition, count)
+            framePosition += count
+            return framePosition == frameLength
+        }
+    }
+
+    private enum class ReaderState {
+        HELLO_LENGTH, HELLO, HEADER_LENGTH, HEADER, MESSAGE_LENGTH, MESSAGE
+    }
+
+    private class ReceivedFrame(val header: BlockExchangeProtos.Header, val buffer: ByteArray, val length: Int)
+
+    private class Frame(val prefix: ByteArray, val payload: ByteArray)
+
     override fun toString(): String {
         return "ConnectionHandler{" + "address=" + address + ", lastActive=" + getLastActive() / 1000.0 + "secs ago}"
     }
@@ -475,6 +893,31 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
     companion object {
 
         private const val MAGIC = 0x2EA7D90B
+        // room for a few responses with the largest blocks
+        private const val DEFAULT_MAX_QUEUED_BYTES = 4L * BlockPusher.MAX_BLOCK_SIZE
+        private const val HELLO_TIMEOUT_MILLIS = 30000L
+        private const val MAX_PROCESSING_BACKLOG_BYTES = 4L * BlockPusher.MAX_BLOCK_SIZE
+
+        private val isNonBlockingThread = object : ThreadLocal<Boolean>() {
+            override fun initialValue() = false
+        }
+
+        /**
+         * Marks the current thread as one that must not wait for a connection, so [sendMessage] never blocks on it.
+         */
+        internal fun markNonBlockingThread() {
+            isNonBlockingThread.set(true)
+        }
+
+        internal fun nonBlockingThreadFactory(name: String): ThreadFactory {
+            val threadCount = AtomicInteger()
+            return ThreadFactory { runnable ->
+                Thread(Runnable {
+                    markNonBlockingThread()
+                    runnable.run()
+                }, "$name-${threadCount.incrementAndGet()}")
+            }
+        }
 
         private val messageTypes = listOf(
                 MessageTypeInfo(MessageType.CLOSE, Close::class.java) { Close.parseFrom(it) },
@@ -487,6 +930,10 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
                 MessageTypeInfo(MessageType.RESPONSE, Response::class.java) { Response.parseFrom(it) }
         )
 
+        private val lz4Decompressor = LZ4Factory.fastestInstance().fastDecompressor()
+
+        private val bufferPool = BufferPool()
+
         private val messageTypesByProtoMessageType = messageTypes.map { it.protoMessageType to it }.toMap()
         private val messageTypesByJavaClass = messageTypes.map { it.javaClass to it }.toMap()
 
@@ -508,6 +955,8 @@ class ConnectionHandler(private val configuration: Configuration, val address: D
     data class MessageTypeInfo(
             val protoMessageType: MessageType,
             val javaClass: Class<out MessageLite>,
-            val parseFrom: (data: ByteArray) -> MessageLite
+            val parseFrom: (input: CodedInputStream) -> MessageLite
     )
+
+    private class ReceivedMessage(val type: MessageType, val message: MessageLite)
 }
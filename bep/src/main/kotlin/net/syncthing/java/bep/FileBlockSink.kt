@@ -0,0 +1,187 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import net.syncthing.java.core.beans.FileBlocks
+import net.syncthing.java.core.utils.BlockUtils
+import org.slf4j.LoggerFactory
+import java.io.*
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Writes blocks to their offset in a temporary file next to [targetFile], which is renamed to [targetFile] once
+ * complete.
+ *
+ * Blocks of zero bytes are not written, they are left as holes of the preallocated file.
+ *
+ * If the download is interrupted, the temporary file is kept along with a progress file listing the written blocks.
+ * A later download of the same file version continues from there, after verifying the listed blocks.
+ */
+internal class FileBlockSink(private val targetFile: File, private val fileBlocks: FileBlocks,
+                             private val fsyncPolicy: FsyncPolicy, private val onCommitted: () -> Unit = {}) : BlockSink {
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val tempFile = File(targetFile.absoluteFile.parentFile, ".syncthing.${targetFile.name}.tmp")
+    private val progressFile = File(targetFile.absoluteFile.parentFile, ".syncthing.${targetFile.name}.progress")
+    private val blockIndexesByOffset = fileBlocks.blocks.withIndex().associate { Pair(it.value.offset, it.index) }
+    private val randomAccessFile: RandomAccessFile
+    private val writtenBlocks: BitSet
+    private var unsavedBlocks = 0
+    private var isCommitted = false
+
+    init {
+        targetFile.absoluteFile.parentFile.mkdirs()
+        val resumedBlocks = if (tempFile.exists()) loadProgress() else null
+        if (resumedBlocks == null) {
+            progressFile.delete()
+        }
+        writtenBlocks = resumedBlocks ?: BitSet(fileBlocks.blocks.size)
+        randomAccessFile = RandomAccessFile(tempFile, "rw")
+        try {
+            if (resumedBlocks == null) {
+                // drops old content, so unwritten zero blocks read as zero
+                randomAccessFile.setLength(0)
+            }
+            randomAccessFile.setLength(fileBlocks.size)
+        } catch (ex: IOException) {
+            randomAccessFile.close()
+            throw ex
+        }
+    }
+
+    override fun write(block: BlockInfo, data: ByteBuffer) {
+        if (BlockUtils.isZeroBlock(block)) {
+            return
+        }
+        val channel = randomAccessFile.channel
+        var position = block.offset
+        while (data.hasRemaining()) {
+            position += channel.write(data, position)
+        }
+        if (fsyncPolicy == FsyncPolicy.EVERY_BLOCK) {
+            channel.force(false)
+        }
+        blockIndexesByOffset[block.offset]?.let { writtenBlocks.set(it) }
+        if (++unsavedBlocks >= PROGRESS_SAVE_INTERVAL_BLOCKS) {
+            saveProgress()
+        }
+    }
+
+    /**
+     * Returns the blocks of an earlier download which are still intact in the temporary file. A hash is only
+     * returned if all blocks with that hash are intact.
+     */
+    override fun storedHashes(): Set<String> {
+        if (writtenBlocks.isEmpty) {
+            return emptySet()
+        }
+        val intactBlocks = fileBlocks.blocks.filterIndexed { index, block ->
+            if (!writtenBlocks.get(index) || BlockUtils.isZeroBlock(block)) {
+                false
+            } else if (readBlock(block)?.let { BlockUtils.hashBlock(it) } == block.hash) {
+                true
+            } else {
+                writtenBlocks.clear(index)
+                false
+            }
+        }
+        val intactHashes = intactBlocks.map { it.hash }.toSet()
+        val missingHashes = fileBlocks.blocks.filterIndexed { index, _ -> !writtenBlocks.get(index) }.map { it.hash }
+        logger.info("resuming download of {}, {} of {} blocks already stored", targetFile, intactBlocks.size,
+                fileBlocks.blocks.size)
+        return intactHashes - missingHashes
+    }
+
+    private fun readBlock(block: BlockInfo): ByteBuffer? {
+        val buffer = ByteBuffer.allocate(block.size)
+        try {
+            while (buffer.hasRemaining()) {
+                if (randomAccessFile.channel.read(buffer, block.offset + buffer.position()) < 0) {
+                    return null
+                }
+            }
+        } catch (ex: IOException) {
+            logger.warn("unable to read block from {}", tempFile, ex)
+            return null
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    /**
+     * Returns the written blocks recorded in the progress file, if it belongs to the same file version.
+     */
+    private fun loadProgress(): BitSet? {
+        if (!progressFile.exists()) {
+            return null
+        }
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(progressFile))).use { inputStream ->
+                if (inputStream.readInt() != PROGRESS_FILE_VERSION
+                        || inputStream.readUTF() != fileBlocks.folder
+                        || inputStream.readUTF() != fileBlocks.path
+                        || inputStream.readUTF() != fileBlocks.hash) {
+                    return null
+                }
+                val bitmap = ByteArray(inputStream.readInt())
+                inputStream.readFully(bitmap)
+                return BitSet.valueOf(bitmap)
+            }
+        } catch (ex: IOException) {
+            logger.warn("unable to read download progress from {}", progressFile, ex)
+            return null
+        }
+    }
+
+    /**
+     * Records the written blocks, after flushing them to disk, so the progress file does not list lost blocks.
+     */
+    private fun saveProgress() {
+        unsavedBlocks = 0
+        try {
+            if (randomAccessFile.channel.isOpen && fsyncPolicy != FsyncPolicy.NEVER) {
+                randomAccessFile.channel.force(false)
+            }
+            DataOutputStream(BufferedOutputStream(FileOutputStream(progressFile))).use { outputStream ->
+                val bitmap = writtenBlocks.toByteArray()
+                outputStream.writeInt(PROGRESS_FILE_VERSION)
+                outputStream.writeUTF(fileBlocks.folder)
+                outputStream.writeUTF(fileBlocks.path)
+                outputStream.writeUTF(fileBlocks.hash)
+                outputStream.writeInt(bitmap.size)
+                outputStream.write(bitmap)
+            }
+        } catch (ex: IOException) {
+            logger.warn("unable to save download progress to {}", progressFile, ex)
+        }
+    }
+
+    override fun commit() {
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            randomAccessFile.channel.force(true)
+        }
+        randomAccessFile.close()
+        // renameTo replaces the target atomically on posix systems, elsewhere it fails if the target exists
+        if (!tempFile.renameTo(targetFile) && !(targetFile.delete() && tempFile.renameTo(targetFile))) {
+            throw IOException("unable to rename $tempFile to $targetFile")
+        }
+        isCommitted = true
+        progressFile.delete()
+        logger.info("downloaded file to {}", targetFile)
+        onCommitted()
+    }
+
+    override fun inputStream(): InputStream = FileInputStream(targetFile)
+
+    override fun close() {
+        if (!isCommitted) {
+            saveProgress()
+            randomAccessFile.close()
+        }
+    }
+
+    companion object {
+        private const val PROGRESS_FILE_VERSION = 1
+        private const val PROGRESS_SAVE_INTERVAL_BLOCKS = 64
+    }
+}
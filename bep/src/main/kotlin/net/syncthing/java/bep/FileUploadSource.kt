@@ -0,0 +1,53 @@
+package net.syncthing.java.bep
+
+import org.apache.commons.io.IOUtils
+import java.io.*
+import java.nio.ByteBuffer
+
+/**
+ * Serves upload blocks from [file] with positional reads, which do not depend on each other. The file is deleted
+ * on close if it is a temporary copy.
+ */
+internal class FileUploadSource(private val file: File, private val isTemporary: Boolean = false) : UploadSource {
+
+    private val randomAccessFile = RandomAccessFile(file, "r")
+
+    override val size = randomAccessFile.length()
+
+    override fun read(offset: Long, buffer: ByteBuffer) {
+        val channel = randomAccessFile.channel
+        val start = buffer.position()
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position() - start) < 0) {
+                throw EOFException("unexpected end of $file at ${offset + buffer.position() - start}")
+            }
+        }
+    }
+
+    override fun close() {
+        randomAccessFile.close()
+        if (isTemporary) {
+            file.delete()
+        }
+    }
+
+    companion object {
+
+        /**
+         * Copies [inputStream] to a temporary file once, and serves the upload from there.
+         */
+        @Throws(IOException::class)
+        fun spool(inputStream: InputStream): FileUploadSource {
+            val tempFile = File.createTempFile("syncthing-upload-", ".tmp")
+            try {
+                inputStream.use { input ->
+                    FileOutputStream(tempFile).use { output -> IOUtils.copyLarge(input, output) }
+                }
+                return FileUploadSource(tempFile, true)
+            } catch (ex: IOException) {
+                tempFile.delete()
+                throw ex
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.syncthing.java.bep
+
+/**
+ * When data written by a file download is forced to the storage device.
+ */
+enum class FsyncPolicy {
+
+    /**
+     * Never sync explicitly, leave it to the operating system.
+     */
+    NEVER,
+
+    /**
+     * Sync once, before the completed file is renamed to its target path.
+     */
+    ON_COMMIT,
+
+    /**
+     * Sync after every written block.
+     */
+    EVERY_BLOCK
+}
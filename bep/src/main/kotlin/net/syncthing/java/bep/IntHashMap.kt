@@ -0,0 +1,135 @@
+package net.syncthing.java.bep
+
+/**
+ * Minimal open addressing hash map with primitive int keys, avoiding the boxing of a `HashMap<Int, V>`.
+ * Not thread safe.
+ */
+internal class IntHashMap<V : Any>(initialCapacity: Int = 16) {
+
+    private var keys = IntArray(tableSize(initialCapacity))
+    private var values = arrayOfNulls<Any>(keys.size)
+    var size = 0
+        private set
+
+    fun isEmpty() = size == 0
+
+    operator fun get(key: Int): V? {
+        val index = indexOf(key)
+        @Suppress("UNCHECKED_CAST")
+        return if (index < 0) null else values[index] as V
+    }
+
+    operator fun set(key: Int, value: V) {
+        if ((size + 1) * 4 > keys.size * 3) {
+            resize(keys.size * 2)
+        }
+        var index = slot(key, keys.size)
+        while (values[index] != null && keys[index] != key) {
+            index = (index + 1) and (keys.size - 1)
+        }
+        if (values[index] == null) {
+            size++
+        }
+        keys[index] = key
+        values[index] = value
+    }
+
+    fun remove(key: Int): V? {
+        val index = indexOf(key)
+        if (index < 0) {
+            return null
+        }
+        @Suppress("UNCHECKED_CAST")
+        val value = values[index] as V
+        removeAt(index)
+        return value
+    }
+
+    /**
+     * Removes and returns all values matching [predicate].
+     */
+    fun removeValues(predicate: (V) -> Boolean): List<V> {
+        val removed = mutableListOf<V>()
+        var index = 0
+        while (index < keys.size) {
+            @Suppress("UNCHECKED_CAST")
+            val value = values[index] as V?
+            if (value != null && predicate(value)) {
+                removed.add(value)
+                // an entry from further on may have been shifted into this slot, so check it again
+                removeAt(index)
+            } else {
+                index++
+            }
+        }
+        return removed
+    }
+
+    fun values(): List<V> {
+        @Suppress("UNCHECKED_CAST")
+        return values.filterNotNull().map { it as V }
+    }
+
+    private fun indexOf(key: Int): Int {
+        var index = slot(key, keys.size)
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index
+            }
+            index = (index + 1) and (keys.size - 1)
+        }
+        return -1
+    }
+
+    /**
+     * Removes the entry at [index] and shifts back following entries of the same probe sequence.
+     */
+    private fun removeAt(index: Int) {
+        val mask = keys.size - 1
+        var gap = index
+        var next = (gap + 1) and mask
+        while (values[next] != null) {
+            val home = slot(keys[next], keys.size)
+            // move the entry into the gap unless its home slot lies cyclically within (gap, next]
+            if ((next - home) and mask >= (next - gap) and mask) {
+                keys[gap] = keys[next]
+                values[gap] = values[next]
+                gap = next
+            }
+            next = (next + 1) and mask
+        }
+        values[gap] = null
+        size--
+    }
+
+    private fun resize(newSize: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        keys = IntArray(newSize)
+        values = arrayOfNulls(newSize)
+        size = 0
+        for (i in oldKeys.indices) {
+            val value = oldValues[i]
+            if (value != null) {
+                @Suppress("UNCHECKED_CAST")
+                set(oldKeys[i], value as V)
+            }
+        }
+    }
+
+    companion object {
+
+        private fun tableSize(capacity: Int): Int {
+            var size = 8
+            while (size * 3 < capacity * 4) {
+                size *= 2
+            }
+            return size
+        }
+
+        private fun slot(key: Int, tableSize: Int): Int {
+            val hash = key * -0x61c88647 // golden ratio, spreads sequential keys
+            return (hash xor (hash ushr 16)) and (tableSize - 1)
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import net.syncthing.java.core.beans.BlockLocation
+import net.syncthing.java.core.interfaces.IndexRepository
+import net.syncthing.java.core.utils.BlockUtils
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.sql.SQLException
+
+/**
+ * Copies blocks from local files which contain them, as recorded in the [IndexRepository]. Locations whose data
+ * no longer matches are removed.
+ */
+internal class LocalBlockSource(private val indexRepository: IndexRepository) : BlockSource {
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    override fun readBlock(block: BlockInfo): ByteBuffer? {
+        val locations = try {
+            indexRepository.findBlockLocations(block.hash)
+        } catch (ex: SQLException) {
+            logger.warn("unable to look up block locations", ex)
+            return null
+        }
+        return readBlock(block, locations, mutableSetOf())
+    }
+
+    /**
+     * Looks up the locations of all [blocks] with a few queries, instead of one query per block.
+     */
+    override fun readBlocks(blocks: List<BlockInfo>, onBlockRead: (BlockInfo, ByteBuffer) -> Unit): List<BlockInfo> {
+        val locationsByHash = try {
+            indexRepository.findBlockLocations(blocks.map { it.hash }.toSet()).groupBy { it.hash }
+        } catch (ex: SQLException) {
+            logger.warn("unable to look up block locations", ex)
+            return blocks
+        }
+        val changedPaths = mutableSetOf<String>()
+        return blocks.filter { block ->
+            val data = locationsByHash[block.hash]?.let { readBlock(block, it, changedPaths) }
+            data?.let { onBlockRead(block, it) }
+            data == null
+        }
+    }
+
+    /**
+     * Reads [block] from the first of [locations] which still contains it. Files found to have changed are added to
+     * [changedPaths] and skipped afterwards.
+     */
+    private fun readBlock(block: BlockInfo, locations: List<BlockLocation>, changedPaths: MutableSet<String>): ByteBuffer? {
+        for (location in locations) {
+            if (location.size != block.size || changedPaths.contains(location.localPath)) {
+                continue
+            }
+            val data = try {
+                readFile(File(location.localPath), location.offset, location.size)
+            } catch (ex: IOException) {
+                logger.debug("unable to read block from {}", location.localPath, ex)
+                null
+            }
+            if (data != null && BlockUtils.hashBlock(data) == block.hash) {
+                logger.debug("copied block {} from local file {}", block.hash, location.localPath)
+                return data
+            }
+            logger.info("local file {} changed, forgetting its blocks", location.localPath)
+            changedPaths.add(location.localPath)
+            try {
+                indexRepository.deleteBlockLocations(location.localPath)
+            } catch (ex: SQLException) {
+                logger.warn("unable to delete block locations of {}", location.localPath, ex)
+            }
+        }
+        return null
+    }
+
+    @Throws(IOException::class)
+    private fun readFile(file: File, offset: Long, size: Int): ByteBuffer? {
+        if (!file.isFile || file.length() < offset + size) {
+            return null
+        }
+        RandomAccessFile(file, "r").use { randomAccessFile ->
+            val buffer = ByteBuffer.allocate(size)
+            while (buffer.hasRemaining()) {
+                if (randomAccessFile.channel.read(buffer, offset + buffer.position()) < 0) {
+                    return null
+                }
+            }
+            buffer.flip()
+            return buffer
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Keeps the most recently used blocks in memory, up to [maxBytes]. [onEvicted] is called with the hash of every
+ * dropped block.
+ */
+internal class LruBlockSink(private val maxBytes: Long, private val onEvicted: (String) -> Unit) : BlockSink {
+
+    private val blocksByHash = LinkedHashMap<String, ByteArray>(16, 0.75f, true)
+    private var size = 0L
+
+    override fun write(block: BlockInfo, data: ByteBuffer) {
+        val bytes = ByteArray(data.remaining())
+        data.get(bytes)
+        val evicted = mutableListOf<String>()
+        synchronized(blocksByHash) {
+            blocksByHash.put(block.hash, bytes)?.let { size -= it.size }
+            size += bytes.size
+            val iterator = blocksByHash.entries.iterator()
+            while (size > maxBytes && blocksByHash.size > 1) {
+                val entry = iterator.next()
+                if (entry.key != block.hash) {
+                    size -= entry.value.size
+                    iterator.remove()
+                    evicted.add(entry.key)
+                }
+            }
+        }
+        evicted.forEach(onEvicted)
+    }
+
+    /**
+     * Returns the content of the block with [hash], or null if it is not (or no longer) available.
+     */
+    fun get(hash: String): ByteArray? = synchronized(blocksByHash) { blocksByHash[hash] }
+
+    /**
+     * Drops the block with [hash], calling [onEvicted].
+     */
+    fun remove(hash: String) {
+        val isRemoved = synchronized(blocksByHash) {
+            blocksByHash.remove(hash)?.let { size -= it.size } != null
+        }
+        if (isRemoved) {
+            onEvicted(hash)
+        }
+    }
+
+    override fun commit() {
+    }
+
+    override fun inputStream(): InputStream = throw UnsupportedOperationException("blocks are only kept partially")
+
+    override fun close() {
+        synchronized(blocksByHash) {
+            blocksByHash.clear()
+            size = 0
+        }
+    }
+}
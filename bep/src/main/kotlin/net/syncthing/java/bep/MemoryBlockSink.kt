@@ -0,0 +1,33 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Keeps all blocks of a download in memory.
+ */
+internal class MemoryBlockSink(private val blocks: List<BlockInfo>) : BlockSink {
+
+    private val blocksByHash = Collections.synchronizedMap(HashMap<String, ByteArray>())
+
+    override fun write(block: BlockInfo, data: ByteBuffer) {
+        val bytes = ByteArray(data.remaining())
+        data.get(bytes)
+        blocksByHash[block.hash] = bytes
+    }
+
+    override fun commit() {
+    }
+
+    override fun inputStream(): InputStream {
+        return SequenceInputStream(Collections.enumeration(blocks.map { ByteArrayInputStream(blocksByHash[it.hash]) }))
+    }
+
+    override fun close() {
+        blocksByHash.clear()
+    }
+}
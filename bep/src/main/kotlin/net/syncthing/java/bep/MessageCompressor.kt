@@ -0,0 +1,77 @@
+package net.syncthing.java.bep
+
+import net.jpountz.lz4.LZ4Factory
+import net.syncthing.java.bep.BlockExchangeProtos.MessageType
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Applies a [CompressionPolicy] to outgoing message payloads.
+ *
+ * Compressed payloads use the BEP framing expected by the receiving side: the uncompressed length as big endian
+ * int, followed by the LZ4 block.
+ */
+internal class MessageCompressor(@Volatile var policy: CompressionPolicy) {
+
+    private val compressor = LZ4Factory.fastestInstance().fastCompressor()
+    private val statsByType = EnumMap<MessageType, RatioStats>(MessageType::class.java)
+
+    /**
+     * @return the compressed payload, or null if the message should be sent uncompressed
+     */
+    fun compress(type: MessageType, data: ByteArray): ByteArray? {
+        if (data.size < MIN_COMPRESS_SIZE || !shouldCompress(type)) {
+            return null
+        }
+        val maxLength = compressor.maxCompressedLength(data.size)
+        val buffer = ByteArray(4 + maxLength)
+        ByteBuffer.wrap(buffer).putInt(data.size)
+        val length = 4 + compressor.compress(data, 0, data.size, buffer, 4, maxLength)
+        recordRatio(type, length.toDouble() / data.size)
+        return if (length < data.size) Arrays.copyOf(buffer, length) else null
+    }
+
+    private fun shouldCompress(type: MessageType): Boolean {
+        return when (policy) {
+            CompressionPolicy.NEVER -> false
+            CompressionPolicy.METADATA -> type != MessageType.RESPONSE
+            CompressionPolicy.ALWAYS -> true
+            CompressionPolicy.ADAPTIVE -> synchronized(statsByType) {
+                val stats = statsByType[type] ?: return true
+                if (stats.ratio < MAX_USEFUL_RATIO) {
+                    true
+                } else {
+                    // periodically retry, content of this message type may have become compressible
+                    stats.skipped++
+                    if (stats.skipped >= PROBE_INTERVAL) {
+                        stats.skipped = 0
+                        true
+                    } else {
+                        false
+                    }
+                }
+            }
+        }
+    }
+
+    private fun recordRatio(type: MessageType, ratio: Double) {
+        synchronized(statsByType) {
+            val stats = statsByType[type]
+            if (stats == null) {
+                statsByType[type] = RatioStats(ratio)
+            } else {
+                stats.ratio = stats.ratio * (1 - RATIO_WEIGHT) + ratio * RATIO_WEIGHT
+            }
+        }
+    }
+
+    private class RatioStats(var ratio: Double, var skipped: Int = 0)
+
+    companion object {
+        // same threshold as upstream syncthing, smaller messages do not benefit from compression
+        private const val MIN_COMPRESS_SIZE = 128
+        private const val MAX_USEFUL_RATIO = 0.9
+        private const val RATIO_WEIGHT = 0.25
+        private const val PROBE_INTERVAL = 32
+    }
+}
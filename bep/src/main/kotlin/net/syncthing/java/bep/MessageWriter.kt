@@ -0,0 +1,103 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.utils.submitLogging
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.OutputStream
+import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Writes frames to a blocking output stream on [executorService].
+ *
+ * Frames queued while a write is in progress are coalesced: a drain cycle writes everything queued into one buffer
+ * and flushes once, so a burst of small messages (eg block requests) becomes few TLS records and syscalls instead
+ * of several per message.
+ */
+internal class MessageWriter(outputStream: OutputStream, private val executorService: ExecutorService,
+                             private val onError: (IOException) -> Unit) : Closeable {
+
+    private val outputStream = BufferedOutputStream(outputStream, BUFFER_SIZE)
+    private val pendingFrames = ArrayDeque<PendingFrame>()
+    private var isDrainScheduled = false
+    private var isClosed = false
+
+    /**
+     * Queues [prefix] followed by [payload] as a single frame. [future] is completed once the frame was written or
+     * dropped.
+     */
+    fun write(prefix: ByteArray, payload: ByteArray, future: WriteFuture = WriteFuture()): Future<*> {
+        synchronized(pendingFrames) {
+            if (isClosed) {
+                future.setException(IOException("connection closed"))
+                return future
+            }
+            pendingFrames.add(PendingFrame(prefix, payload, future))
+            if (isDrainScheduled) {
+                return future
+            }
+            isDrainScheduled = true
+        }
+        try {
+            executorService.submitLogging { drain() }
+        } catch (ex: RejectedExecutionException) {
+            failPendingFrames(IOException("connection closed"))
+        }
+        return future
+    }
+
+    private fun drain() {
+        while (true) {
+            val frames = synchronized(pendingFrames) {
+                if (pendingFrames.isEmpty()) {
+                    isDrainScheduled = false
+                    return
+                }
+                val list = pendingFrames.toList()
+                pendingFrames.clear()
+                list
+            }
+            try {
+                frames.forEach {
+                    outputStream.write(it.prefix)
+                    outputStream.write(it.payload)
+                }
+                outputStream.flush()
+            } catch (ex: IOException) {
+                frames.forEach { it.future.setException(ex) }
+                failPendingFrames(ex)
+                onError(ex)
+                return
+            }
+            frames.forEach { it.future.complete() }
+        }
+    }
+
+    private fun failPendingFrames(error: IOException) {
+        val frames = synchronized(pendingFrames) {
+            isClosed = true
+            val list = pendingFrames.toList()
+            pendingFrames.clear()
+            list
+        }
+        frames.forEach { it.future.setException(error) }
+    }
+
+    override fun close() {
+        failPendingFrames(IOException("connection closed"))
+        try {
+            outputStream.close()
+        } catch (ex: IOException) {
+            // ignore, socket is being closed anyway
+        }
+    }
+
+    private class PendingFrame(val prefix: ByteArray, val payload: ByteArray, val future: WriteFuture)
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+    }
+}
@@ -0,0 +1,535 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.utils.NetworkUtils
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.SocketChannel
+import java.util.*
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.SSLEngineResult
+import javax.net.ssl.SSLSession
+
+/**
+ * Non-blocking alternative to the thread-per-connection socket handling in [ConnectionHandler].
+ *
+ * A small fixed set of selector threads drives TLS (via [SSLEngine]) for all connections, received messages are
+ * processed on a shared pool, and periodic tasks (pings) run on a single shared scheduler. The number of threads is
+ * therefore independent of the number of connected peers. Since the threads are shared, messages sent from them
+ * never wait for a slow connection, see [ConnectionHandler.sendMessage].
+ *
+ * Only direct TCP connections use the engine, relay connections are always opened as blocking sockets.
+ *
+ * Reads and writes are paced by the rate limiters of a connection: while they allow no data, the connection stops
+ * selecting for that direction and is pumped again once tokens are available. The selector thread of the connection
+ * keeps that timer itself, so pacing never depends on the shared scheduler. As with blocking sockets, the limiters
+ * count application data, not the TLS records carrying it.
+ */
+class NioConnectionEngine(selectorThreads: Int = DEFAULT_SELECTOR_THREADS,
+                          processingThreads: Int = DEFAULT_PROCESSING_THREADS) : Closeable {
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val nextSelectorLoop = AtomicInteger()
+    @Volatile private var isClosed = false
+    private val selectorLoops = (0 until selectorThreads).map { SelectorLoop("bep-nio-selector-$it") }
+    internal val processingExecutorService: ExecutorService = Executors.newFixedThreadPool(processingThreads,
+            ConnectionHandler.nonBlockingThreadFactory("bep-nio-processing"))
+    internal val periodicExecutorService: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+            ConnectionHandler.nonBlockingThreadFactory("bep-nio-timer"))
+
+    init {
+        assert(selectorThreads > 0 && processingThreads > 0)
+    }
+
+    /**
+     * Starts connecting and handshaking in the background. Data written before the handshake completed is sent
+     * afterwards.
+     */
+    @Throws(IOException::class)
+    internal fun connect(address: InetSocketAddress, sslEngine: SSLEngine, listener: Listener,
+                         readLimiters: List<RateLimiter> = emptyList(),
+                         writeLimiters: List<RateLimiter> = emptyList()): Connection {
+        NetworkUtils.assertProtocol(!isClosed, {"connection engine closed"})
+        val channel = SocketChannel.open()
+        channel.configureBlocking(false)
+        channel.socket().tcpNoDelay = true
+        val selectorLoop = selectorLoops[Math.abs(nextSelectorLoop.getAndIncrement() % selectorLoops.size)]
+        val connection = Connection(selectorLoop, channel, sslEngine, listener, readLimiters, writeLimiters)
+        selectorLoop.execute {
+            connection.open(address)
+            selectorLoop.schedule(TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS), { connection.checkConnected() })
+        }
+        return connection
+    }
+
+    override fun close() {
+        isClosed = true
+        selectorLoops.forEach { it.wakeup() }
+        processingExecutorService.shutdown()
+        periodicExecutorService.shutdown()
+    }
+
+    internal interface Listener {
+
+        /**
+         * Called on a selector thread with decrypted application data, which must be consumed entirely.
+         */
+        @Throws(IOException::class)
+        fun onDataReceived(data: ByteBuffer)
+
+        /**
+         * Called once the connection is closed, with the cause if it was not closed locally.
+         */
+        fun onClosed(error: IOException?)
+    }
+
+    internal inner class SelectorLoop(name: String) : Runnable {
+
+        val selector: Selector = Selector.open()
+        private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+        // only accessed on the selector thread
+        private val timers = PriorityQueue<Timer>(11, compareBy { it.deadlineNanos })
+        private val thread = Thread(this, name)
+
+        init {
+            thread.isDaemon = true
+            thread.start()
+        }
+
+        fun execute(task: () -> Unit) {
+            tasks.add(task)
+            selector.wakeup()
+        }
+
+        fun wakeup() {
+            selector.wakeup()
+        }
+
+        /**
+         * Runs [task] on the selector thread after [delayNanos]. Must be called on the selector thread.
+         */
+        fun schedule(delayNanos: Long, task: () -> Unit) {
+            timers.add(Timer(System.nanoTime() + delayNanos, task))
+        }
+
+        private fun selectTimeoutMillis(): Long {
+            val timer = timers.peek() ?: return SELECT_TIMEOUT_MILLIS
+            val delayMillis = TimeUnit.NANOSECONDS.toMillis(timer.deadlineNanos - System.nanoTime() + 999999)
+            // select(0) would wait without timeout
+            return Math.max(1L, Math.min(SELECT_TIMEOUT_MILLIS, delayMillis))
+        }
+
+        private fun runTask(task: () -> Unit) {
+            try {
+                task()
+            } catch (ex: Exception) {
+                logger.error("error running selector task", ex)
+            }
+        }
+
+        override fun run() {
+            ConnectionHandler.markNonBlockingThread()
+            while (!isClosed) {
+                try {
+                    selector.select(selectTimeoutMillis())
+                } catch (ex: IOException) {
+                    logger.error("error selecting channels", ex)
+                }
+                while (true) {
+                    val task = tasks.poll() ?: break
+                    runTask(task)
+                }
+                val now = System.nanoTime()
+                while (timers.isNotEmpty() && timers.peek().deadlineNanos - now <= 0) {
+                    runTask(timers.poll().task)
+                }
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    if (key.isValid) {
+                        (key.attachment() as Connection).onSelected(key.readyOps())
+                    }
+                }
+            }
+            selector.keys().toList().forEach { (it.attachment() as Connection).fail(IOException("connection engine closed")) }
+            try {
+                selector.close()
+            } catch (ex: IOException) {
+                logger.warn("error closing selector", ex)
+            }
+        }
+    }
+
+    private class PendingWrite(val data: ByteBuffer, val future: WriteFuture)
+
+    private class Timer(val deadlineNanos: Long, val task: () -> Unit)
+
+    /**
+     * A single TLS connection. All state except the pending write queue is confined to the selector thread.
+     */
+    internal inner class Connection(private val selectorLoop: SelectorLoop, private val channel: SocketChannel,
+                                    private val sslEngine: SSLEngine, private val listener: Listener,
+                                    private val readLimiters: List<RateLimiter>,
+                                    private val writeLimiters: List<RateLimiter>) {
+
+        private var key: SelectionKey? = null
+        private var netIn = ByteBuffer.allocate(sslEngine.session.packetBufferSize)
+        private var netOut = ByteBuffer.allocate(sslEngine.session.packetBufferSize)
+        private var appIn = ByteBuffer.allocate(sslEngine.session.applicationBufferSize)
+        private val pendingWrites = ArrayDeque<PendingWrite>()
+        private val wrappedWrites = mutableListOf<WriteFuture>()
+        private val isPumpScheduled = AtomicBoolean(false)
+        private var isHandshakeDone = false
+        private var isReadThrottled = false
+        private var isWriteThrottled = false
+        private var isThrottleScheduled = false
+        @Volatile private var isReadPaused = false
+        @Volatile var isClosed = false
+            private set
+
+        val session: SSLSession
+            get() = sslEngine.session
+
+        fun write(data: ByteBuffer, future: WriteFuture = WriteFuture()): Future<*> {
+            synchronized(pendingWrites) {
+                if (isClosed) {
+                    future.setException(IOException("connection closed"))
+                    return future
+                }
+                pendingWrites.add(PendingWrite(data, future))
+            }
+            if (isPumpScheduled.compareAndSet(false, true)) {
+                selectorLoop.execute {
+                    isPumpScheduled.set(false)
+                    pumpSafely()
+                }
+            }
+            return future
+        }
+
+        /**
+         * Stops or resumes reading, to hold back the peer while its received messages wait for processing. Data
+         * read already is still delivered.
+         */
+        fun setReadPaused(isPaused: Boolean) {
+            isReadPaused = isPaused
+            if (!isPaused) {
+                selectorLoop.execute { pumpSafely() }
+            }
+        }
+
+        /**
+         * Flushes pending writes as far as possible without blocking, then closes the connection.
+         */
+        fun close() {
+            selectorLoop.execute {
+                if (!isClosed) {
+                    pumpSafely()
+                    try {
+                        sslEngine.closeOutbound()
+                        wrap()
+                        flush()
+                    } catch (ex: IOException) {
+                        logger.debug("error closing tls session", ex)
+                    }
+                    doClose(null)
+                }
+            }
+        }
+
+        fun open(address: InetSocketAddress) {
+            try {
+                val isConnected = channel.connect(address)
+                key = channel.register(selectorLoop.selector, if (isConnected) SelectionKey.OP_READ else SelectionKey.OP_CONNECT, this)
+                if (isConnected) {
+                    onConnected()
+                }
+            } catch (ex: IOException) {
+                fail(ex)
+            }
+        }
+
+        fun checkConnected() {
+            if (!isClosed && !isHandshakeDone) {
+                fail(IOException("timeout connecting to ${channel.socket().remoteSocketAddress}"))
+            }
+        }
+
+        fun onSelected(readyOps: Int) {
+            try {
+                if (readyOps and SelectionKey.OP_CONNECT != 0) {
+                    if (channel.finishConnect()) {
+                        onConnected()
+                    }
+                } else {
+                    pump()
+                }
+            } catch (ex: IOException) {
+                fail(ex)
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun onConnected() {
+            key!!.interestOps(SelectionKey.OP_READ)
+            sslEngine.beginHandshake()
+            pump()
+        }
+
+        private fun pumpSafely() {
+            try {
+                pump()
+            } catch (ex: IOException) {
+                fail(ex)
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun pump() {
+            if (isClosed || !channel.isConnected) {
+                return
+            }
+            var progress = true
+            isReadThrottled = false
+            isWriteThrottled = false
+            while (progress && !isClosed) {
+                val read = read()
+                if (read < 0) {
+                    fail(IOException("connection closed by peer"))
+                    return
+                }
+                progress = read > 0
+                progress = unwrap() || progress
+                progress = wrap() || progress
+                progress = flush() || progress
+            }
+            if (!isClosed) {
+                key!!.interestOps((if (isReadThrottled || isReadPaused) 0 else SelectionKey.OP_READ) or
+                        if (netOut.position() > 0) SelectionKey.OP_WRITE else 0)
+                if ((isReadThrottled || isWriteThrottled) && !isThrottleScheduled) {
+                    isThrottleScheduled = true
+                    val delayNanos = Math.max(MIN_THROTTLE_DELAY_NANOS,
+                            RateLimiter.delayNanos(if (isReadThrottled) readLimiters + writeLimiters else writeLimiters))
+                    selectorLoop.schedule(delayNanos, {
+                        isThrottleScheduled = false
+                        pumpSafely()
+                    })
+                }
+            }
+        }
+
+        /**
+         * Reads about as much as the read limiters allow, unless reading is paused. The data is counted once it is
+         * decrypted, see [unwrap].
+         */
+        @Throws(IOException::class)
+        private fun read(): Int {
+            if (!netIn.hasRemaining() || isReadPaused) {
+                return 0
+            }
+            val allowed = RateLimiter.available(readLimiters, netIn.remaining())
+            if (allowed <= 0) {
+                isReadThrottled = true
+                return 0
+            }
+            val limit = netIn.limit()
+            netIn.limit(netIn.position() + allowed)
+            return try {
+                channel.read(netIn)
+            } finally {
+                netIn.limit(limit)
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun unwrap(): Boolean {
+            var progress = false
+            netIn.flip()
+            try {
+                loop@ while (netIn.hasRemaining() && !isClosed) {
+                    val result = sslEngine.unwrap(netIn, appIn)
+                    RateLimiter.consume(readLimiters, result.bytesProduced())
+                    when (result.status!!) {
+                        SSLEngineResult.Status.OK -> {
+                            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                                break@loop
+                            }
+                            progress = true
+                        }
+                        SSLEngineResult.Status.BUFFER_UNDERFLOW -> break@loop
+                        SSLEngineResult.Status.BUFFER_OVERFLOW -> {
+                            if (appIn.position() == 0) {
+                                appIn = enlarge(appIn, sslEngine.session.applicationBufferSize)
+                            }
+                        }
+                        SSLEngineResult.Status.CLOSED -> {
+                            fail(IOException("tls session closed by peer"))
+                            return progress
+                        }
+                    }
+                    deliverAppData()
+                    onHandshakeStatus(result.handshakeStatus)
+                    if (sslEngine.handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        break@loop
+                    }
+                }
+            } finally {
+                netIn.compact()
+            }
+            if (!netIn.hasRemaining()) {
+                // a single tls record does not fit, can only happen if the session packet size grew
+                netIn = enlarge(netIn, sslEngine.session.packetBufferSize)
+            }
+            return progress
+        }
+
+        @Throws(IOException::class)
+        private fun wrap(): Boolean {
+            var progress = false
+            loop@ while (!isClosed) {
+                val handshakeStatus = sslEngine.handshakeStatus
+                var pendingWrite: PendingWrite? = null
+                val source = if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP || sslEngine.isOutboundDone) {
+                    EMPTY_BUFFER
+                } else if (isHandshakeDone && handshakeStatus == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    pendingWrite = synchronized(pendingWrites) { pendingWrites.peekFirst() } ?: break@loop
+                    pendingWrite.data
+                } else {
+                    break@loop
+                }
+                // only application data is limited, so handshake and close messages always go out
+                val allowed = if (pendingWrite != null) RateLimiter.available(writeLimiters, source.remaining()) else source.remaining()
+                if (pendingWrite != null && allowed <= 0) {
+                    isWriteThrottled = true
+                    break@loop
+                }
+                val sourceLimit = source.limit()
+                source.limit(source.position() + allowed)
+                val result = try {
+                    sslEngine.wrap(source, netOut)
+                } finally {
+                    source.limit(sourceLimit)
+                }
+                if (pendingWrite != null) {
+                    RateLimiter.consume(writeLimiters, result.bytesConsumed())
+                }
+                when (result.status!!) {
+                    SSLEngineResult.Status.OK -> {
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                            break@loop
+                        }
+                        progress = true
+                    }
+                    SSLEngineResult.Status.BUFFER_OVERFLOW -> {
+                        if (netOut.position() == 0) {
+                            netOut = enlarge(netOut, sslEngine.session.packetBufferSize)
+                        } else if (!flush()) {
+                            break@loop
+                        }
+                    }
+                    SSLEngineResult.Status.BUFFER_UNDERFLOW -> break@loop
+                    SSLEngineResult.Status.CLOSED -> {
+                        if (result.bytesProduced() == 0) {
+                            break@loop
+                        }
+                        progress = true
+                    }
+                }
+                onHandshakeStatus(result.handshakeStatus)
+                if (pendingWrite != null && !pendingWrite.data.hasRemaining()) {
+                    synchronized(pendingWrites) {
+                        pendingWrites.pollFirst()
+                    }
+                    wrappedWrites.add(pendingWrite.future)
+                }
+            }
+            return progress
+        }
+
+        @Throws(IOException::class)
+        private fun flush(): Boolean {
+            if (netOut.position() == 0) {
+                return false
+            }
+            netOut.flip()
+            val written = channel.write(netOut)
+            netOut.compact()
+            if (netOut.position() == 0) {
+                wrappedWrites.forEach { it.complete() }
+                wrappedWrites.clear()
+            }
+            return written > 0
+        }
+
+        private fun onHandshakeStatus(handshakeStatus: SSLEngineResult.HandshakeStatus) {
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.FINISHED) {
+                isHandshakeDone = true
+            }
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                // handshake tasks are short, running them here avoids handing the engine between threads
+                while (true) {
+                    val task = sslEngine.delegatedTask ?: break
+                    task.run()
+                }
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun deliverAppData() {
+            if (appIn.position() > 0) {
+                appIn.flip()
+                listener.onDataReceived(appIn)
+                appIn.clear()
+            }
+        }
+
+        fun fail(error: IOException) {
+            if (!isClosed) {
+                logger.debug("connection failed", error)
+                doClose(error)
+            }
+        }
+
+        private fun doClose(error: IOException?) {
+            val failedWrites = synchronized(pendingWrites) {
+                isClosed = true
+                val list = pendingWrites.map { it.future } + wrappedWrites
+                pendingWrites.clear()
+                list
+            }
+            wrappedWrites.clear()
+            failedWrites.forEach { it.setException(error ?: IOException("connection closed")) }
+            key?.cancel()
+            try {
+                channel.close()
+            } catch (ex: IOException) {
+                logger.warn("error closing channel", ex)
+            }
+            listener.onClosed(error)
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_SELECTOR_THREADS = 2
+        private const val DEFAULT_PROCESSING_THREADS = 4
+        private const val SELECT_TIMEOUT_MILLIS = 1000L
+        private const val CONNECT_TIMEOUT_MILLIS = 10000L
+        private const val MIN_THROTTLE_DELAY_NANOS = 1000L * 1000
+        private val EMPTY_BUFFER = ByteBuffer.allocate(0)
+
+        private fun enlarge(buffer: ByteBuffer, minExtraSpace: Int): ByteBuffer {
+            val newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + minExtraSpace))
+            buffer.flip()
+            newBuffer.put(buffer)
+            return newBuffer
+        }
+    }
+}
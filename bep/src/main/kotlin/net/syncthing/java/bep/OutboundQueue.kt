@@ -0,0 +1,131 @@
+package net.syncthing.java.bep
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.*
+
+/**
+ * Accounts for the messages of a connection that are serialized but not yet written to the socket, and limits their
+ * total size to [maxQueuedBytes].
+ *
+ * Threads which must not block can defer a message instead of waiting for space. Deferred messages are admitted in
+ * order as queued messages are written, and producers waiting for space queue up behind them. [onDeferredChanged] is
+ * called whenever the first message is deferred or the last deferred message is admitted, so the connection can stop
+ * producing messages in the meantime.
+ */
+internal class OutboundQueue(@Volatile var maxQueuedBytes: Long, private val onDeferredChanged: () -> Unit = {}) {
+
+    private val lock = Object()
+    private var isClosed = false
+    private val deferredMessages = ArrayDeque<DeferredMessage>()
+    private var deferredBytes = 0L
+
+    var queuedBytes = 0L
+        get() = synchronized(lock) { field }
+        private set
+
+    var queuedMessages = 0
+        get() = synchronized(lock) { field }
+        private set
+
+    val hasDeferredMessages: Boolean
+        get() = synchronized(lock) { deferredMessages.isNotEmpty() }
+
+    /**
+     * Reserves [size] bytes. If the budget is exhausted, waits for queued messages to be written if [block] is set,
+     * otherwise returns false. A message larger than the whole budget is admitted once the queue is empty.
+     */
+    @Throws(IOException::class)
+    fun acquire(size: Int, block: Boolean): Boolean {
+        synchronized(lock) {
+            while (!isClosed && (deferredMessages.isNotEmpty() || !fitsLocked(size))) {
+                if (!block) {
+                    return false
+                }
+                try {
+                    lock.wait()
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    throw InterruptedIOException("interrupted while waiting for outbound queue")
+                }
+            }
+            if (isClosed) {
+                throw IOException("connection closed")
+            }
+            queuedBytes += size
+            queuedMessages++
+            return true
+        }
+    }
+
+    /**
+     * Reserves [size] bytes without waiting. [onAcquired] is called once the bytes are reserved, right away or on
+     * the thread releasing enough space, and [onRejected] if the queue is closed before.
+     */
+    @Throws(IOException::class)
+    fun acquireOrDefer(size: Int, onAcquired: () -> Unit, onRejected: (IOException) -> Unit) {
+        val isFirstDeferred = synchronized(lock) {
+            if (isClosed) {
+                throw IOException("connection closed")
+            }
+            if (deferredMessages.isEmpty() && fitsLocked(size)) {
+                queuedBytes += size
+                queuedMessages++
+                null
+            } else {
+                deferredMessages.add(DeferredMessage(size, onAcquired, onRejected))
+                deferredBytes += size
+                deferredMessages.size == 1
+            }
+        }
+        when (isFirstDeferred) {
+            null -> onAcquired()
+            true -> onDeferredChanged()
+        }
+    }
+
+    fun release(size: Int) {
+        var isDeferredChanged = false
+        val admittedMessages = synchronized(lock) {
+            queuedBytes -= size
+            queuedMessages--
+            val list = mutableListOf<DeferredMessage>()
+            while (!isClosed && deferredMessages.isNotEmpty() && fitsLocked(deferredMessages.first.size)) {
+                val deferredMessage = deferredMessages.removeFirst()
+                deferredBytes -= deferredMessage.size
+                queuedBytes += deferredMessage.size
+                queuedMessages++
+                list.add(deferredMessage)
+            }
+            isDeferredChanged = list.isNotEmpty() && deferredMessages.isEmpty()
+            lock.notifyAll()
+            list
+        }
+        admittedMessages.forEach { it.onAcquired() }
+        if (isDeferredChanged) {
+            onDeferredChanged()
+        }
+    }
+
+    /**
+     * Wakes up and fails producers waiting for space.
+     */
+    fun close() {
+        val rejectedMessages = synchronized(lock) {
+            isClosed = true
+            lock.notifyAll()
+            val list = deferredMessages.toList()
+            deferredMessages.clear()
+            deferredBytes = 0
+            list
+        }
+        rejectedMessages.forEach { it.onRejected(IOException("connection closed")) }
+        if (rejectedMessages.isNotEmpty()) {
+            onDeferredChanged()
+        }
+    }
+
+    private fun fitsLocked(size: Int) = queuedMessages == 0 || queuedBytes + size <= maxQueuedBytes
+
+    private class DeferredMessage(val size: Int, val onAcquired: () -> Unit, val onRejected: (IOException) -> Unit)
+}
@@ -0,0 +1,28 @@
+package net.syncthing.java.bep
+
+import java.io.FilterInputStream
+import java.io.InputStream
+
+/**
+ * Reads at most as much data at a time as the [limiters] allow.
+ */
+internal class RateLimitedInputStream(inputStream: InputStream,
+                                      private val limiters: List<RateLimiter>) : FilterInputStream(inputStream) {
+
+    override fun read(): Int {
+        val buffer = ByteArray(1)
+        return if (read(buffer, 0, 1) < 0) -1 else buffer[0].toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = `in`.read(b, off, RateLimiter.awaitAvailable(limiters, len))
+        RateLimiter.consume(limiters, read)
+        return read
+    }
+
+    override fun skip(n: Long): Long {
+        val skipped = `in`.skip(RateLimiter.awaitAvailable(limiters, Math.min(n, Int.MAX_VALUE.toLong()).toInt()).toLong())
+        RateLimiter.consume(limiters, skipped.toInt())
+        return skipped
+    }
+}
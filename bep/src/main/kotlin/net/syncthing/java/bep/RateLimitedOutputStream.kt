@@ -0,0 +1,25 @@
+package net.syncthing.java.bep
+
+import java.io.FilterOutputStream
+import java.io.OutputStream
+
+/**
+ * Writes data in chunks, each once the [limiters] allow it.
+ */
+internal class RateLimitedOutputStream(outputStream: OutputStream,
+                                       private val limiters: List<RateLimiter>) : FilterOutputStream(outputStream) {
+
+    override fun write(b: Int) {
+        write(byteArrayOf(b.toByte()), 0, 1)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        var written = 0
+        while (written < len) {
+            val chunk = RateLimiter.awaitAvailable(limiters, len - written)
+            out.write(b, off + written, chunk)
+            RateLimiter.consume(limiters, chunk)
+            written += chunk
+        }
+    }
+}
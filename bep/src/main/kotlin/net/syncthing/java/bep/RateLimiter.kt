@@ -0,0 +1,143 @@
+package net.syncthing.java.bep
+
+import java.io.InterruptedIOException
+
+/**
+ * Token bucket limiting the data rate in one direction. Tokens accumulate at [bytesPerSecond] up to [burstBytes];
+ * data may only be transferred while tokens are available. A limit of 0 disables limiting, while the usage is still
+ * measured.
+ *
+ * Transfers are paced in small chunks, so a large message is spread over time instead of being held back as a whole.
+ */
+class RateLimiter(bytesPerSecond: Long = 0, burstBytes: Long = DEFAULT_BURST_BYTES) {
+
+    private var tokens = burstBytes.toDouble()
+    private var lastRefill = System.nanoTime()
+    private var totalBytes = 0L
+    private var rateSampleStart = lastRefill
+    private var rateSampleBytes = 0L
+    private var measuredBytesPerSecond = 0L
+
+    var bytesPerSecond = bytesPerSecond
+        @Synchronized get
+        @Synchronized set(value) {
+            refill()
+            field = value
+        }
+
+    var burstBytes = burstBytes
+        @Synchronized get
+        @Synchronized set(value) {
+            refill()
+            field = value
+            tokens = Math.min(tokens, value.toDouble())
+        }
+
+    /**
+     * Amount of data transferred so far.
+     */
+    val transferredBytes: Long
+        @Synchronized get() = totalBytes
+
+    /**
+     * Data rate measured over the last second.
+     */
+    val currentBytesPerSecond: Long
+        @Synchronized get() = if (System.nanoTime() - rateSampleStart > 2 * RATE_SAMPLE_NANOS) 0 else measuredBytesPerSecond
+
+    private fun refill() {
+        val now = System.nanoTime()
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(burstBytes.toDouble(), tokens + (now - lastRefill) * bytesPerSecond / 1e9)
+        }
+        lastRefill = now
+    }
+
+    /**
+     * Returns the amount of data that may be transferred now, [Long.MAX_VALUE] if not limited.
+     */
+    @Synchronized
+    internal fun available(): Long {
+        if (bytesPerSecond <= 0) {
+            return Long.MAX_VALUE
+        }
+        refill()
+        return if (tokens >= minGrantBytes()) tokens.toLong() else 0
+    }
+
+    /**
+     * Returns the time until [available] returns a non-zero amount.
+     */
+    @Synchronized
+    internal fun delayNanos(): Long {
+        if (bytesPerSecond <= 0) {
+            return 0
+        }
+        refill()
+        return Math.max(0L, ((minGrantBytes() - tokens) * 1e9 / bytesPerSecond).toLong())
+    }
+
+    /**
+     * Records [bytes] as transferred. The bucket may go into debt if several connections shared the same tokens.
+     */
+    @Synchronized
+    internal fun consume(bytes: Long) {
+        refill()
+        if (bytesPerSecond > 0) {
+            tokens -= bytes
+        }
+        totalBytes += bytes
+        rateSampleBytes += bytes
+        val elapsed = lastRefill - rateSampleStart
+        if (elapsed >= RATE_SAMPLE_NANOS) {
+            measuredBytesPerSecond = (rateSampleBytes * 1e9 / elapsed).toLong()
+            rateSampleStart = lastRefill
+            rateSampleBytes = 0
+        }
+    }
+
+    // waiting for a few kilobytes avoids tiny reads and writes
+    private fun minGrantBytes() = Math.max(1.0, Math.min(MIN_GRANT_BYTES.toDouble(), burstBytes.toDouble()))
+
+    companion object {
+        private const val DEFAULT_BURST_BYTES = 256L * 1024
+        private const val MIN_GRANT_BYTES = 4 * 1024
+        private const val RATE_SAMPLE_NANOS = 1000L * 1000 * 1000
+        internal const val PACING_CHUNK_BYTES = 16 * 1024
+
+        /**
+         * Returns how much of [maxBytes] may be transferred now according to all [limiters].
+         */
+        internal fun available(limiters: List<RateLimiter>, maxBytes: Int): Int =
+                limiters.fold(maxBytes.toLong(), { bytes, limiter -> Math.min(bytes, limiter.available()) }).toInt()
+
+        internal fun delayNanos(limiters: List<RateLimiter>): Long =
+                limiters.fold(0L, { delay, limiter -> Math.max(delay, limiter.delayNanos()) })
+
+        internal fun consume(limiters: List<RateLimiter>, bytes: Int) {
+            if (bytes > 0) {
+                limiters.forEach { it.consume(bytes.toLong()) }
+            }
+        }
+
+        /**
+         * Waits until some data may be transferred, and returns how much of [maxBytes], at most one pacing chunk.
+         */
+        @Throws(InterruptedIOException::class)
+        internal fun awaitAvailable(limiters: List<RateLimiter>, maxBytes: Int): Int {
+            val chunk = Math.min(maxBytes, PACING_CHUNK_BYTES)
+            while (true) {
+                val bytes = available(limiters, chunk)
+                if (bytes > 0 || chunk == 0) {
+                    return bytes
+                }
+                val delayNanos = Math.max(delayNanos(limiters), 1000L * 1000)
+                try {
+                    Thread.sleep(delayNanos / 1000000, (delayNanos % 1000000).toInt())
+                } catch (ex: InterruptedException) {
+                    throw InterruptedIOException()
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import net.syncthing.java.core.beans.FileBlocks
+import java.io.Closeable
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+
+/**
+ * Random access to the content of a remote file. Only the blocks covering the ranges that are read are pulled;
+ * when reads are sequential, the following [readAheadBytes] are requested in advance.
+ *
+ * In [isSequential] mode the read ahead starts right away and blocks are dropped from the cache once read past.
+ */
+class RemoteFileReader internal constructor(private val fileBlocks: FileBlocks, blockSources: List<BlockSource>,
+                                            maxCachedBytes: Long, private val readAheadBytes: Long,
+                                            private val isSequential: Boolean = false) : Closeable {
+
+    private val blockCache: LruBlockSink = LruBlockSink(maxCachedBytes, { download.onBlockEvicted(it) })
+    private val download: BlockDownload = BlockDownload(fileBlocks, blockCache, blockSources, false)
+    private val blocks = fileBlocks.blocks
+    @Volatile private var lastReadEnd = if (isSequential) 0L else -1L
+    // end of the range requested for the current run of sequential reads
+    @Volatile private var requestedEnd = 0L
+
+    val size: Long
+        get() = fileBlocks.size
+
+    internal fun start(blockPullers: List<BlockPuller>) {
+        download.start(blockPullers)
+        if (isSequential) {
+            requestedEnd = Math.min(size, readAheadBytes)
+            requestRange(0, requestedEnd)
+        }
+    }
+
+    /**
+     * Reads up to [length] bytes at [position] into [buffer], returns the number of bytes read or -1 at the end of
+     * the file. Blocks until the data is available.
+     */
+    @Throws(IOException::class)
+    fun read(position: Long, buffer: ByteArray, offset: Int, length: Int): Int {
+        assert(position >= 0 && offset >= 0 && length >= 0 && offset + length <= buffer.size)
+        if (position >= size) {
+            return -1
+        }
+        val end = Math.min(size, position + length)
+        val firstIndex = findBlockIndex(position)
+        val lastIndex = findBlockIndex(end - 1)
+        if (position == lastReadEnd) {
+            // sequential, blocks up to requestedEnd were requested already unless evicted, which getBlockData handles
+            val readAheadEnd = Math.min(size, end + readAheadBytes)
+            requestRange(Math.max(position, requestedEnd), readAheadEnd)
+            requestedEnd = Math.max(requestedEnd, readAheadEnd)
+        } else {
+            // a seek starts a new run, so the read ahead continues from here even after seeking backwards
+            requestRange(position, end)
+            requestedEnd = end
+        }
+        var bufferOffset = offset
+        for (block in blocks.subList(firstIndex, lastIndex + 1)) {
+            val data = getBlockData(block)
+            val start = Math.max(position, block.offset)
+            val count = (Math.min(end, block.offset + block.size) - start).toInt()
+            System.arraycopy(data, (start - block.offset).toInt(), buffer, bufferOffset, count)
+            bufferOffset += count
+            if (isSequential && start + count == block.offset + block.size) {
+                blockCache.remove(block.hash)
+            }
+        }
+        lastReadEnd = end
+        return bufferOffset - offset
+    }
+
+    /**
+     * Reads [length] bytes at [offset].
+     */
+    @Throws(IOException::class)
+    fun readRange(offset: Long, length: Int): ByteArray {
+        if (offset + length > size) {
+            throw EOFException("range $offset+$length exceeds file size $size")
+        }
+        val buffer = ByteArray(length)
+        var count = 0
+        while (count < length) {
+            count += read(offset + count, buffer, count, length - count)
+        }
+        return buffer
+    }
+
+    /**
+     * Returns a stream reading the file sequentially, starting at [position].
+     */
+    fun inputStream(position: Long = 0): InputStream = object : InputStream() {
+
+        private var streamPosition = position
+
+        override fun read(): Int {
+            val buffer = ByteArray(1)
+            return if (read(buffer, 0, 1) < 0) -1 else buffer[0].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) {
+                return 0
+            }
+            val count = this@RemoteFileReader.read(streamPosition, b, off, len)
+            if (count > 0) {
+                streamPosition += count
+            }
+            return count
+        }
+
+        override fun skip(n: Long): Long {
+            val skipped = Math.max(0, Math.min(n, size - streamPosition))
+            streamPosition += skipped
+            return skipped
+        }
+
+        override fun available() = Math.min(Int.MAX_VALUE.toLong(), size - streamPosition).toInt()
+    }
+
+    @Throws(IOException::class)
+    private fun requestRange(start: Long, end: Long) {
+        if (start < end) {
+            download.requestBlocks(blocks.subList(findBlockIndex(start), findBlockIndex(end - 1) + 1))
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun getBlockData(block: BlockInfo): ByteArray {
+        while (true) {
+            blockCache.get(block.hash)?.let { return it }
+            // not received yet, or evicted again in the meantime
+            download.requestBlocks(listOf(block))
+            try {
+                download.waitForBlock(block.hash)
+            } catch (ex: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("interrupted while waiting for block ${block.hash}")
+            }
+        }
+    }
+
+    /**
+     * Binary search for the block containing [position].
+     */
+    private fun findBlockIndex(position: Long): Int {
+        var low = 0
+        var high = blocks.size - 1
+        while (low < high) {
+            val middle = (low + high + 1) ushr 1
+            if (blocks[middle].offset <= position) {
+                low = middle
+            } else {
+                high = middle - 1
+            }
+        }
+        return low
+    }
+
+    override fun close() {
+        download.close()
+    }
+}
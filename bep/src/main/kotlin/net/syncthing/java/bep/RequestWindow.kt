@@ -0,0 +1,82 @@
+package net.syncthing.java.bep
+
+/**
+ * Limits the amount of requested but not yet received block data on a connection.
+ *
+ * The window is sized to twice the measured bandwidth-delay product (peak delivery rate times minimum round trip
+ * time). While the link is not saturated, responses arrive at the unloaded round trip time and the window doubles
+ * every round trip; once it is saturated the delivery rate stops growing and the window settles. A fixed window can
+ * be configured with [fixedWindowBytes].
+ */
+internal class RequestWindow(@Volatile var maxWindowBytes: Long = DEFAULT_MAX_WINDOW_BYTES) {
+
+    @Volatile var fixedWindowBytes: Long? = null
+    private var adaptiveWindowBytes = INITIAL_WINDOW_BYTES
+    private var minRttNanos = Long.MAX_VALUE
+    private var minRttTimestamp = 0L
+    private var smoothedRttNanos = 0L
+    private var maxDeliveryRate = 0.0 // bytes per nanosecond
+    private var sampleStart = 0L
+    private var sampleBytes = 0L
+    private val recentRttNanos = LongArray(RECENT_RTT_SAMPLES)
+    private var rttSampleCount = 0
+
+    val windowBytes: Long
+        @Synchronized get() = Math.min(fixedWindowBytes ?: adaptiveWindowBytes, maxWindowBytes)
+
+    val roundTripTimeNanos: Long
+        @Synchronized get() = smoothedRttNanos
+
+    /**
+     * Returns the given percentile of the recent round trip times, or null if there are too few samples yet.
+     */
+    @Synchronized
+    fun roundTripTimePercentileNanos(percentile: Double): Long? {
+        val count = Math.min(rttSampleCount, RECENT_RTT_SAMPLES)
+        if (count < MIN_PERCENTILE_SAMPLES) {
+            return null
+        }
+        val samples = recentRttNanos.copyOf(count)
+        samples.sort()
+        return samples[Math.min(count - 1, Math.ceil(percentile * count).toInt() - 1).coerceAtLeast(0)]
+    }
+
+    /**
+     * Records a response of [size] bytes, received [rttNanos] after sending its request.
+     */
+    @Synchronized
+    fun onResponse(size: Int, rttNanos: Long) {
+        val now = System.nanoTime()
+        recentRttNanos[rttSampleCount % RECENT_RTT_SAMPLES] = rttNanos
+        rttSampleCount = (rttSampleCount + 1) and Int.MAX_VALUE
+        smoothedRttNanos = if (smoothedRttNanos == 0L) rttNanos else (smoothedRttNanos * 7 + rttNanos) / 8
+        if (rttNanos <= minRttNanos || now - minRttTimestamp > MIN_RTT_EXPIRY_NANOS) {
+            minRttNanos = rttNanos
+            minRttTimestamp = now
+        }
+        if (sampleStart == 0L) {
+            sampleStart = now - rttNanos
+        }
+        sampleBytes += size
+        val elapsed = now - sampleStart
+        if (elapsed >= Math.max(smoothedRttNanos, MIN_SAMPLE_NANOS)) {
+            val deliveryRate = sampleBytes.toDouble() / elapsed
+            maxDeliveryRate = Math.max(deliveryRate, maxDeliveryRate * DELIVERY_RATE_DECAY)
+            sampleStart = now
+            sampleBytes = 0
+            adaptiveWindowBytes = Math.max(MIN_WINDOW_BYTES, (2 * maxDeliveryRate * minRttNanos).toLong())
+        }
+    }
+
+    companion object {
+        // keep at least two of the largest blocks in flight, so files with large blocks are pipelined as well
+        private const val MIN_WINDOW_BYTES = 2L * BlockPusher.MAX_BLOCK_SIZE
+        private const val INITIAL_WINDOW_BYTES = MIN_WINDOW_BYTES
+        private const val DEFAULT_MAX_WINDOW_BYTES = 8L * BlockPusher.MAX_BLOCK_SIZE
+        private const val MIN_SAMPLE_NANOS = 10L * 1000 * 1000
+        private const val MIN_RTT_EXPIRY_NANOS = 10L * 1000 * 1000 * 1000
+        private const val DELIVERY_RATE_DECAY = 0.95
+        private const val RECENT_RTT_SAMPLES = 64
+        private const val MIN_PERCENTILE_SAMPLES = 16
+    }
+}
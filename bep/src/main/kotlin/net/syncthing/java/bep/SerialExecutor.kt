@@ -0,0 +1,88 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.utils.submitLogging
+import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Runs tasks one at a time and in order on a shared [executorService], so a single connection never occupies more
+ * than one of its threads. Each task is submitted separately, so the tasks of several instances take turns.
+ */
+internal class SerialExecutor(private val executorService: ExecutorService) : Executor {
+
+    private val tasks = ArrayDeque<Runnable>()
+    private var isRunning = false
+    private var isPaused = false
+
+    override fun execute(task: Runnable) {
+        synchronized(tasks) {
+            tasks.add(task)
+            if (isRunning || isPaused) {
+                return
+            }
+            isRunning = true
+        }
+        if (!submitNext()) {
+            throw RejectedExecutionException("executor shut down")
+        }
+    }
+
+    /**
+     * Holds back queued tasks until [resume] is called. A task which is already running is not affected.
+     */
+    fun pause() {
+        synchronized(tasks) {
+            isPaused = true
+        }
+    }
+
+    fun resume() {
+        synchronized(tasks) {
+            isPaused = false
+            if (isRunning || tasks.isEmpty()) {
+                return
+            }
+            isRunning = true
+        }
+        submitNext()
+    }
+
+    /**
+     * Submits the next task, or drops all tasks if the executor was shut down.
+     */
+    private fun submitNext(): Boolean {
+        try {
+            executorService.submitLogging { runNext() }
+            return true
+        } catch (ex: RejectedExecutionException) {
+            synchronized(tasks) {
+                tasks.clear()
+                isRunning = false
+            }
+            return false
+        }
+    }
+
+    private fun runNext() {
+        val task = synchronized(tasks) {
+            val task = if (isPaused) null else tasks.poll()
+            if (task == null) {
+                isRunning = false
+            }
+            task
+        } ?: return
+        try {
+            task.run()
+        } finally {
+            val hasMoreTasks = synchronized(tasks) {
+                isRunning = tasks.isNotEmpty() && !isPaused
+                isRunning
+            }
+            if (hasMoreTasks) {
+                submitNext()
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.FileInfo
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Pulls files from several connections at once. Every connection keeps its own request window filled with blocks
+ * of the file, so faster peers serve more blocks; blocks requested from a peer that disconnects or does not have
+ * the file are requested from the remaining peers.
+ */
+class SwarmBlockPuller internal constructor(private val blockPullers: List<BlockPuller>) {
+
+    /**
+     * Enables hedged requests on all connections, see [BlockPuller.hedgeRequests].
+     */
+    var hedgeRequests: Boolean
+        get() = blockPullers.all { it.hedgeRequests }
+        set(value) {
+            blockPullers.forEach { it.hedgeRequests = value }
+        }
+
+    @Throws(IOException::class, InterruptedException::class)
+    fun pullFile(fileInfo: FileInfo): BlockPuller.FileDownloadObserver =
+            BlockPuller.pullFile(fileInfo, blockPullers, null, FsyncPolicy.NEVER)
+
+    @Throws(IOException::class, InterruptedException::class)
+    fun pullFile(fileInfo: FileInfo, targetFile: File, fsyncPolicy: FsyncPolicy = FsyncPolicy.ON_COMMIT,
+                 requestPriority: Int = 0): BlockPuller.FileDownloadObserver =
+            BlockPuller.pullFile(fileInfo, blockPullers, targetFile, fsyncPolicy, requestPriority)
+
+    @Throws(IOException::class, InterruptedException::class)
+    fun openFile(fileInfo: FileInfo, maxCachedBytes: Long = BlockPuller.DEFAULT_MAX_CACHED_BYTES,
+                 readAheadBytes: Long = BlockPuller.DEFAULT_READ_AHEAD_BYTES): RemoteFileReader =
+            BlockPuller.openFile(fileInfo, blockPullers, maxCachedBytes, readAheadBytes)
+
+    @Throws(IOException::class, InterruptedException::class)
+    fun pullFileAsStream(fileInfo: FileInfo, lookaheadBytes: Long = BlockPuller.DEFAULT_LOOKAHEAD_BYTES): InputStream =
+            BlockPuller.pullFileAsStream(fileInfo, blockPullers, lookaheadBytes)
+
+    companion object {
+
+        fun create(connectionHandlers: List<ConnectionHandler>) = SwarmBlockPuller(connectionHandlers.map { it.getBlockPuller() })
+    }
+}
@@ -0,0 +1,27 @@
+package net.syncthing.java.bep
+
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Content of a file being uploaded, from which blocks are read at any offset, by several threads at once.
+ */
+internal interface UploadSource : Closeable {
+
+    val size: Long
+
+    @Throws(IOException::class)
+    fun read(offset: Long, size: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(size)
+        read(offset, buffer)
+        buffer.flip()
+        return buffer
+    }
+
+    /**
+     * Fills the remaining space of [buffer] with the data at [offset].
+     */
+    @Throws(IOException::class)
+    fun read(offset: Long, buffer: ByteBuffer)
+}
@@ -0,0 +1,23 @@
+package net.syncthing.java.bep
+
+import java.util.concurrent.Callable
+import java.util.concurrent.FutureTask
+
+/**
+ * Future for a queued write, completed by the writing thread once the data has been written to the socket.
+ * [onDone] is called once the write succeeded or failed.
+ */
+internal class WriteFuture(private val onDone: () -> Unit = {}) : FutureTask<Any?>(Callable<Any?> { null }) {
+
+    fun complete() {
+        run()
+    }
+
+    public override fun setException(t: Throwable) {
+        super.setException(t)
+    }
+
+    override fun done() {
+        onDone()
+    }
+}
@@ -0,0 +1,15 @@
+package net.syncthing.java.bep
+
+import net.syncthing.java.core.beans.BlockInfo
+import net.syncthing.java.core.utils.BlockUtils
+import java.nio.ByteBuffer
+
+/**
+ * Provides blocks consisting of zero bytes without requesting them. These are common in disk images and
+ * preallocated files.
+ */
+internal class ZeroBlockSource : BlockSource {
+
+    override fun readBlock(block: BlockInfo): ByteBuffer? =
+            if (BlockUtils.isZeroBlock(block)) ByteBuffer.allocate(block.size).asReadOnlyBuffer() else null
+}
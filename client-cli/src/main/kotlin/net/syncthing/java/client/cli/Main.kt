@@ -20,10 +20,8 @@ import net.syncthing.java.core.configuration.Configuration
 import net.syncthing.java.repository.repo.SqlRepository
 import net.syncthing.java.client.SyncthingClient
 import org.apache.commons.cli.*
-import org.apache.commons.io.FileUtils
 import org.slf4j.LoggerFactory
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
 import java.util.concurrent.CountDownLatch
 
@@ -57,7 +55,7 @@ class Main(private val commandLine: CommandLine) {
             options.addOption("c", "config", false, "dump config")
             options.addOption("S", "set-peers", true, "set peer, or comma-separated list of peers")
             options.addOption("p", "pull", true, "pull file from network")
-            options.addOption("P", "push", true, "push file to network")
+            options.addOption("P", "push", true, "push file or directory to network")
             options.addOption("o", "output", true, "set output file/directory")
             options.addOption("i", "input", true, "set input file/directory")
             options.addOption("a", "list-peers", false, "list peer addresses")
@@ -93,10 +91,8 @@ class Main(private val commandLine: CommandLine) {
                 val path = folderAndPath.split(":".toRegex()).dropLastWhile({ it.isEmpty() }).toTypedArray()[1]
                 val latch = CountDownLatch(1)
                 val fileInfo = FileInfo(folder = folder, path = path, type = FileInfo.FileType.FILE)
-                syncthingClient.getBlockPuller(folder, { blockPuller ->
+                syncthingClient.getSwarmBlockPuller(folder, { blockPuller ->
                     try {
-                        val observer = blockPuller.pullFile(fileInfo)
-                        val inputStream = observer.waitForComplete().inputStream()
                         val fileName = syncthingClient.indexHandler.getFileInfoByPath(folder, path)!!.fileName
                         val file  =
                                 if (commandLine.hasOption("o")) {
@@ -105,7 +101,7 @@ class Main(private val commandLine: CommandLine) {
                                 } else {
                                     File(fileName)
                                 }
-                        FileUtils.copyInputStreamToFile(inputStream, file)
+                        blockPuller.pullFile(fileInfo, file).use { it.waitForComplete() }
                         System.out.println("saved file to = $file.absolutePath")
                     } catch (e: InterruptedException) {
                         logger.warn("", e)
@@ -124,7 +120,8 @@ class Main(private val commandLine: CommandLine) {
                 path = path.split(":".toRegex()).dropLastWhile({ it.isEmpty() }).toTypedArray()[1]
                 val latch = CountDownLatch(1)
                 syncthingClient.getBlockPusher(folder, { blockPusher ->
-                    val observer = blockPusher.pushFile(FileInputStream(file), folder, path)
+                    val observer = if (file.isDirectory) blockPusher.pushDirectory(file, folder, path)
+                            else blockPusher.pushFile(file, folder, path)
                     while (!observer.isCompleted()) {
                         try {
                             observer.waitForProgressUpdate()
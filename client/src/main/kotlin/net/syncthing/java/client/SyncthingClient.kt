@@ -13,10 +13,15 @@
  */
 package net.syncthing.java.client
 
+import net.syncthing.java.bep.BandwidthLimiter
+import net.syncthing.java.bep.BlockCache
 import net.syncthing.java.bep.BlockPuller
 import net.syncthing.java.bep.BlockPusher
+import net.syncthing.java.bep.BlockRequestCoalescer
 import net.syncthing.java.bep.ConnectionHandler
 import net.syncthing.java.bep.IndexHandler
+import net.syncthing.java.bep.NioConnectionEngine
+import net.syncthing.java.bep.SwarmBlockPuller
 import net.syncthing.java.core.beans.DeviceAddress
 import net.syncthing.java.core.beans.DeviceId
 import net.syncthing.java.core.beans.DeviceInfo
@@ -39,7 +44,8 @@ import kotlin.collections.ArrayList
 class SyncthingClient(
         private val configuration: Configuration,
         private val repository: IndexRepository,
-        private val tempRepository: TempRepository
+        private val tempRepository: TempRepository,
+        private val connectionEngine: NioConnectionEngine? = null
 ) : Closeable {
 
     private val logger = LoggerFactory.getLogger(javaClass)
@@ -49,6 +55,17 @@ class SyncthingClient(
     private val connectByDeviceIdLocks = Collections.synchronizedMap(HashMap<DeviceId, Object>())
     private val onConnectionChangedListeners = Collections.synchronizedList(mutableListOf<(DeviceId) -> Unit>())
     private var connectDevicesScheduler = Executors.newSingleThreadScheduledExecutor()
+    private val blockCache = if (configuration.blockCacheMaxBytes > 0)
+        BlockCache(configuration.blockCacheFolder, configuration.blockCacheMaxBytes) else null
+    private val requestCoalescer = BlockRequestCoalescer()
+    val transferManager = TransferManager(this)
+    private val peerBandwidthLimiters = Collections.synchronizedMap(HashMap<DeviceId, BandwidthLimiter>())
+
+    /**
+     * Limits the data rates of all connections together. The limits apply to the decrypted BEP data, so TLS overhead
+     * is not counted, whether a connection uses the non-blocking engine or a blocking socket.
+     */
+    val bandwidthLimiter = BandwidthLimiter()
 
     private fun createConnectionsSet() = TreeSet<ConnectionHandler>(compareBy { it.address.score })
 
@@ -87,7 +104,15 @@ class SyncthingClient(
                         connections.remove(connection)
                     }
                     onConnectionChangedListeners.forEach { it(connection.deviceId()) }
-                })
+                }, connectionEngine = connectionEngine, blockCache = blockCache,
+                requestCoalescer = requestCoalescer,
+                bandwidthLimiters = listOf(bandwidthLimiter, getBandwidthLimiter(deviceAddress.deviceId())))
+        connectionHandler.getBlockPuller().failoverPullerSupplier = { folder ->
+            synchronized(connections) {
+                connections.filter { it != connectionHandler && it.isConnected && it.hasFolder(folder) }
+                        .map { it.getBlockPuller() }
+            }
+        }
 
         try {
           connectionHandler.connect()
@@ -204,12 +229,36 @@ class SyncthingClient(
         }, errorListener)
     }
 
+    /**
+     * Connects to all devices sharing [folderId] and passes a puller using all of them to [listener].
+     */
+    fun getSwarmBlockPuller(folderId: String, listener: (SwarmBlockPuller) -> Unit, errorListener: () -> Unit) {
+        val folderConnections = Collections.synchronizedList(mutableListOf<ConnectionHandler>())
+        getPeerConnections({ connection ->
+            if (connection.hasFolder(folderId)) {
+                folderConnections.add(connection)
+            }
+        }, {
+            if (folderConnections.isEmpty()) {
+                errorListener()
+            } else {
+                listener(SwarmBlockPuller.create(folderConnections.distinct()))
+            }
+        })
+    }
+
     fun getBlockPusher(folderId: String, listener: (BlockPusher) -> Unit, errorListener: () -> Unit) {
         getConnectionForFolder(folderId, { connection ->
             listener(connection.getBlockPusher())
         }, errorListener)
     }
 
+    /**
+     * Returns the limits for the connections to [deviceId], which are kept across reconnects.
+     */
+    fun getBandwidthLimiter(deviceId: DeviceId): BandwidthLimiter =
+            synchronized(peerBandwidthLimiters) { peerBandwidthLimiters.getOrPut(deviceId, { BandwidthLimiter() }) }
+
     fun getPeerStatus(): List<DeviceInfo> {
         return configuration.peers.map { device ->
             val isConnected = connections.find { it.deviceId() == device.deviceId }?.isConnected ?: false
@@ -218,11 +267,13 @@ class SyncthingClient(
     }
 
     override fun close() {
+        transferManager.close()
         connectDevicesScheduler.awaitTerminationSafe()
         discoveryHandler.close()
         // Create copy of list, because it will be modified by handleConnectionClosedEvent(), causing ConcurrentModificationException.
         ArrayList(connections).forEach{it.close()}
         indexHandler.close()
+        blockCache?.close()
         repository.close()
         tempRepository.close()
         assert(onConnectionChangedListeners.isEmpty())
@@ -0,0 +1,106 @@
+package net.syncthing.java.client
+
+import java.io.IOException
+
+/**
+ * A pull or push of a single file, or a push of a directory tree, queued in the [TransferManager].
+ */
+class TransferJob internal constructor(val folder: String, val path: String, val priority: TransferPriority,
+                                       internal val sequence: Long, internal val transfer: (TransferJob) -> Unit) {
+
+    enum class State { QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED }
+
+    private val lock = Object()
+    private var thread: Thread? = null
+    private var isCancelRequested = false
+    @Volatile internal var progressSupplier: () -> Double = { 0.0 }
+
+    @Volatile var state = State.QUEUED
+        private set
+
+    @Volatile var error: Exception? = null
+        private set
+
+    fun progress() = if (state == State.COMPLETED) 1.0 else progressSupplier()
+
+    /**
+     * Removes the job from the queue, or stops it if it is running already.
+     */
+    fun cancel() {
+        synchronized(lock) {
+            when (state) {
+                State.QUEUED -> {
+                    state = State.CANCELLED
+                    lock.notifyAll()
+                }
+                State.RUNNING -> {
+                    isCancelRequested = true
+                    thread?.interrupt()
+                }
+                else -> {}
+            }
+        }
+    }
+
+    /**
+     * Waits until the job has ended, and throws if it did not complete.
+     */
+    @Throws(IOException::class, InterruptedException::class)
+    fun waitForComplete(): TransferJob {
+        synchronized(lock) {
+            while (state == State.QUEUED || state == State.RUNNING) {
+                lock.wait()
+            }
+        }
+        when (state) {
+            State.FAILED -> throw IOException("transfer of $path failed", error)
+            State.CANCELLED -> throw IOException("transfer of $path cancelled")
+            else -> return this
+        }
+    }
+
+    internal fun markRunning(): Boolean = synchronized(lock) {
+        if (state != State.QUEUED) {
+            return false
+        }
+        state = State.RUNNING
+        true
+    }
+
+    /**
+     * Runs the transfer on the current thread, which is interrupted if the job is cancelled meanwhile.
+     */
+    internal fun run() {
+        synchronized(lock) {
+            if (isCancelRequested) {
+                finishLocked(null)
+                return
+            }
+            thread = Thread.currentThread()
+        }
+        val transferError = try {
+            transfer(this)
+            null
+        } catch (ex: Exception) {
+            ex
+        }
+        synchronized(lock) {
+            thread = null
+            // clears an interrupt from a cancellation that came too late, before the thread is reused
+            Thread.interrupted()
+            finishLocked(transferError)
+        }
+    }
+
+    private fun finishLocked(transferError: Exception?) {
+        state = when {
+            isCancelRequested -> State.CANCELLED
+            transferError != null -> State.FAILED
+            else -> State.COMPLETED
+        }
+        error = transferError
+        lock.notifyAll()
+    }
+
+    override fun toString() = "TransferJob(folder=$folder, path=$path, priority=$priority, state=$state)"
+}
@@ -0,0 +1,166 @@
+package net.syncthing.java.client
+
+import net.syncthing.java.bep.BlockPusher
+import net.syncthing.java.bep.SwarmBlockPuller
+import net.syncthing.java.core.beans.FileInfo
+import net.syncthing.java.core.utils.awaitTerminationSafe
+import net.syncthing.java.core.utils.submitLogging
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.Executors
+
+/**
+ * Queues the file transfers of a [SyncthingClient] and runs a limited number of them at once.
+ *
+ * Interactive jobs are started before background jobs, and background jobs never take all slots, so an interactive
+ * job does not wait for a large background sync. Jobs of equal priority are started in order of submission, within
+ * per-folder limits. Running pulls share the request windows of their connections in turn, and interactive pulls
+ * get their blocks requested first.
+ */
+class TransferManager internal constructor(private val syncthingClient: SyncthingClient) : Closeable {
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val executorService = Executors.newCachedThreadPool()
+    private val queuedJobs = mutableListOf<TransferJob>()
+    private val activeJobs = mutableListOf<TransferJob>()
+    private var nextSequence = 0L
+    private var isClosed = false
+    private val lock = Object()
+
+    @Volatile var maxActiveJobs = DEFAULT_MAX_ACTIVE_JOBS
+
+    @Volatile var maxActiveJobsPerFolder = DEFAULT_MAX_ACTIVE_JOBS_PER_FOLDER
+
+    /**
+     * Limit for running background jobs, below [maxActiveJobs] to keep room for interactive jobs.
+     */
+    @Volatile var maxActiveBackgroundJobs = DEFAULT_MAX_ACTIVE_BACKGROUND_JOBS
+
+    val jobs: List<TransferJob>
+        get() = synchronized(lock) { activeJobs + queuedJobs.filter { it.state == TransferJob.State.QUEUED } }
+
+    /**
+     * Queues a download of [fileInfo] to [targetFile], from all connected devices sharing its folder.
+     */
+    fun pullFile(fileInfo: FileInfo, targetFile: File, priority: TransferPriority = TransferPriority.BACKGROUND): TransferJob =
+            submit(fileInfo.folder, fileInfo.path, priority, { job ->
+                val observer = getSwarmBlockPuller(fileInfo.folder).pullFile(fileInfo, targetFile,
+                        requestPriority = priority.requestPriority)
+                observer.use {
+                    job.progressSupplier = { observer.progress() }
+                    observer.waitForComplete()
+                }
+            })
+
+    /**
+     * Queues an upload of the content of [inputStream] to [targetPath].
+     */
+    fun pushFile(inputStream: InputStream, folderId: String, targetPath: String,
+                 priority: TransferPriority = TransferPriority.BACKGROUND): TransferJob =
+            submit(folderId, targetPath, priority, { job ->
+                val observer = getBlockPusher(folderId).pushFile(inputStream, folderId, targetPath)
+                observer.use {
+                    job.progressSupplier = { observer.progressPercentage() / 100.0 }
+                    observer.waitForComplete()
+                }
+            })
+
+    /**
+     * Queues an upload of the files and directories below [directory] to [targetPath], as a single job.
+     */
+    fun pushDirectory(directory: File, folderId: String, targetPath: String,
+                      priority: TransferPriority = TransferPriority.BACKGROUND): TransferJob =
+            submit(folderId, targetPath, priority, { job ->
+                val observer = getBlockPusher(folderId).pushDirectory(directory, folderId, targetPath)
+                observer.use {
+                    job.progressSupplier = { observer.progressPercentage() / 100.0 }
+                    observer.waitForComplete()
+                }
+            })
+
+    private fun submit(folder: String, path: String, priority: TransferPriority, transfer: (TransferJob) -> Unit): TransferJob {
+        val job = synchronized(lock) {
+            if (isClosed) {
+                throw IOException("transfer manager closed")
+            }
+            val job = TransferJob(folder, path, priority, nextSequence++, transfer)
+            queuedJobs.add(job)
+            job
+        }
+        logger.debug("queued {}", job)
+        startJobs()
+        return job
+    }
+
+    /**
+     * Starts queued jobs, by priority and submission order, as far as the limits allow.
+     */
+    private fun startJobs() {
+        val startedJobs = synchronized(lock) {
+            queuedJobs.removeAll { it.state != TransferJob.State.QUEUED }
+            val startedJobs = mutableListOf<TransferJob>()
+            for (job in queuedJobs.sortedWith(compareBy({ it.priority.ordinal }, { it.sequence }))) {
+                if (isClosed || activeJobs.size >= maxActiveJobs) {
+                    break
+                }
+                if (activeJobs.count { it.folder == job.folder } >= maxActiveJobsPerFolder) {
+                    continue
+                }
+                if (job.priority == TransferPriority.BACKGROUND
+                        && activeJobs.count { it.priority == TransferPriority.BACKGROUND } >= maxActiveBackgroundJobs) {
+                    continue
+                }
+                if (job.markRunning()) {
+                    activeJobs.add(job)
+                    startedJobs.add(job)
+                }
+            }
+            queuedJobs.removeAll(startedJobs)
+            startedJobs
+        }
+        startedJobs.forEach { job ->
+            executorService.submitLogging {
+                logger.debug("starting {}", job)
+                job.run()
+                logger.debug("finished {}", job)
+                synchronized(lock) {
+                    activeJobs.remove(job)
+                }
+                startJobs()
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun getSwarmBlockPuller(folder: String): SwarmBlockPuller {
+        var blockPuller: SwarmBlockPuller? = null
+        syncthingClient.getSwarmBlockPuller(folder, { blockPuller = it }, {})
+        return blockPuller ?: throw IOException("no connection for folder $folder")
+    }
+
+    @Throws(IOException::class)
+    private fun getBlockPusher(folder: String): BlockPusher {
+        var blockPusher: BlockPusher? = null
+        syncthingClient.getBlockPusher(folder, { blockPusher = it }, {})
+        return blockPusher ?: throw IOException("no connection for folder $folder")
+    }
+
+    override fun close() {
+        val jobsToCancel = synchronized(lock) {
+            isClosed = true
+            queuedJobs + activeJobs
+        }
+        jobsToCancel.forEach { it.cancel() }
+        executorService.shutdown()
+        executorService.awaitTerminationSafe()
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_ACTIVE_JOBS = 4
+        private const val DEFAULT_MAX_ACTIVE_JOBS_PER_FOLDER = 2
+        private const val DEFAULT_MAX_ACTIVE_BACKGROUND_JOBS = 3
+    }
+}
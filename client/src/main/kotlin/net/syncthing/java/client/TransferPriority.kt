@@ -0,0 +1,9 @@
+package net.syncthing.java.client
+
+/**
+ * Priority of a [TransferJob]. Interactive jobs are started before background jobs, and their blocks are requested
+ * first on shared connections.
+ */
+enum class TransferPriority(internal val requestPriority: Int) {
+    INTERACTIVE(1), BACKGROUND(0)
+}
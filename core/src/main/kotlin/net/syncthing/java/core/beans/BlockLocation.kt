@@ -0,0 +1,6 @@
+package net.syncthing.java.core.beans
+
+/**
+ * A copy of a block in a local file.
+ */
+data class BlockLocation(val localPath: String, val offset: Long, val size: Int, val hash: String)
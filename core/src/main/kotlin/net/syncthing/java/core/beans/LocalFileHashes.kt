@@ -0,0 +1,8 @@
+package net.syncthing.java.core.beans
+
+/**
+ * Block hashes computed for the local file [localPath], valid as long as its [size] and [lastModified] time are
+ * unchanged.
+ */
+data class LocalFileHashes(val localPath: String, val size: Long, val lastModified: Long, val blockSize: Int,
+                           val blocks: List<BlockInfo>, val hash: String)
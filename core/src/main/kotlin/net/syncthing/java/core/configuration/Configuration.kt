@@ -22,14 +22,17 @@ class Configuration(configFolder: File = DefaultConfigFolder) {
             val localDeviceId: String,
             val discoveryServers: Set<String>,
             val keystoreAlgorithm: String,
-            val keystoreData: String) {
+            val keystoreData: String,
+            val blockCacheMaxBytes: Long? = null) {
         // Exclude keystoreData from toString()
         override fun toString() = "Config(peers=$peers, folders=$folders, localDeviceName=$localDeviceName, " +
-                "localDeviceId=$localDeviceId, discoveryServers=$discoveryServers, keystoreAlgorithm=$keystoreAlgorithm)"
+                "localDeviceId=$localDeviceId, discoveryServers=$discoveryServers, keystoreAlgorithm=$keystoreAlgorithm, " +
+                "blockCacheMaxBytes=$blockCacheMaxBytes)"
     }
 
     private val configFile = File(configFolder, ConfigFileName)
     val databaseFolder = File(configFolder, DatabaseFolderName)
+    val blockCacheFolder = File(configFolder, BlockCacheFolderName)
 
     private var isSaved = true
     private var config: Config
@@ -65,7 +68,8 @@ class Configuration(configFolder: File = DefaultConfigFolder) {
                     localDeviceId = config.localDeviceId,
                     discoveryServers = Companion.DiscoveryServers,
                     keystoreAlgorithm = config.keystoreAlgorithm,
-                    keystoreData = config.keystoreData
+                    keystoreData = config.keystoreData,
+                    blockCacheMaxBytes = config.blockCacheMaxBytes
                 )
             }
         }
@@ -76,6 +80,8 @@ class Configuration(configFolder: File = DefaultConfigFolder) {
         private val DefaultConfigFolder = File(System.getProperty("user.home"), ".config/syncthing-java/")
         private const val ConfigFileName = "config.json"
         private const val DatabaseFolderName = "database"
+        private const val BlockCacheFolderName = "block_cache"
+        private const val DefaultBlockCacheMaxBytes = 256L * 1024 * 1024
         private val DiscoveryServers = setOf(
                 "discovery.syncthing.net", "discovery-v4.syncthing.net", "discovery-v6.syncthing.net")
         private val OldDiscoveryServers = setOf(
@@ -126,6 +132,16 @@ class Configuration(configFolder: File = DefaultConfigFolder) {
             isSaved = false
         }
 
+    /**
+     * Size limit of the block cache in [blockCacheFolder], 0 disables the cache.
+     */
+    var blockCacheMaxBytes: Long
+        get() = config.blockCacheMaxBytes ?: DefaultBlockCacheMaxBytes
+        set(blockCacheMaxBytes) {
+            config = config.copy(blockCacheMaxBytes = blockCacheMaxBytes)
+            isSaved = false
+        }
+
     fun persistNow() {
         persist()
     }
@@ -147,5 +163,5 @@ class Configuration(configFolder: File = DefaultConfigFolder) {
 
     override fun toString() = "Configuration(peers=$peers, folders=$folders, localDeviceName=$localDeviceName, " +
             "localDeviceId=${localDeviceId.deviceId}, discoveryServers=$discoveryServers, instanceId=$instanceId, " +
-            "configFile=$configFile, databaseFolder=$databaseFolder)"
+            "configFile=$configFile, databaseFolder=$databaseFolder, blockCacheFolder=$blockCacheFolder)"
 }
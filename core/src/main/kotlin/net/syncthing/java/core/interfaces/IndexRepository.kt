@@ -49,6 +49,34 @@ interface IndexRepository: Closeable {
 
     fun countFileInfoBySearchTerm(query: String): Long
 
+    /**
+     * Returns local files known to contain a block with [hash].
+     */
+    fun findBlockLocations(hash: String): List<BlockLocation>
+
+    /**
+     * Returns local files known to contain a block with any of [hashes].
+     */
+    fun findBlockLocations(hashes: Collection<String>): List<BlockLocation>
+
+    /**
+     * Replaces the known blocks of the local file [localPath] with [blocks].
+     */
+    fun updateBlockLocations(localPath: String, blocks: List<BlockInfo>)
+
+    fun deleteBlockLocations(localPath: String)
+
+    /**
+     * Returns the hashes computed earlier for [localPath], if the file still has the same [size] and [lastModified]
+     * time.
+     */
+    fun findLocalFileHashes(localPath: String, size: Long, lastModified: Long): LocalFileHashes?
+
+    /**
+     * Records the hashes of a local file, replacing those of an earlier version.
+     */
+    fun updateLocalFileHashes(localFileHashes: LocalFileHashes)
+
     abstract class FolderStatsUpdatedEvent {
 
         abstract fun getFolderStats(): List<FolderStats>
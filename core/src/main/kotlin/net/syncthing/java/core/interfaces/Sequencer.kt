@@ -19,5 +19,10 @@ interface Sequencer {
 
     fun nextSequence(): Long
 
+    /**
+     * Reserves [count] consecutive sequence numbers at once, and returns the first of them.
+     */
+    fun nextSequences(count: Int): Long
+
     fun currentSequence(): Long
 }
@@ -48,10 +48,11 @@ class KeystoreHandler private constructor(private val keyStore: KeyStore) {
 
     class CryptoException internal constructor(t: Throwable) : GeneralSecurityException(t)
 
+    private val sslContext: SSLContext
     private val socketFactory: SSLSocketFactory
 
     init {
-        val sslContext = SSLContext.getInstance(TLS_VERSION)
+        sslContext = SSLContext.getInstance(TLS_VERSION)
         val keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm())
         keyManagerFactory.init(keyStore, KEY_PASSWORD.toCharArray())
 
@@ -116,9 +117,22 @@ class KeystoreHandler private constructor(private val keyStore: KeyStore) {
         }
     }
 
+    /**
+     * Create a client mode engine, for connections driven by non-blocking channels instead of sockets.
+     */
+    fun createSSLEngine(address: InetSocketAddress): SSLEngine {
+        val engine = sslContext.createSSLEngine(address.hostString, address.port)
+        engine.useClientMode = true
+        return engine
+    }
+
     @Throws(SSLPeerUnverifiedException::class, CertificateException::class)
     fun checkSocketCertificate(socket: SSLSocket, deviceId: DeviceId) {
-        val session = socket.session
+        checkSessionCertificate(socket.session, deviceId)
+    }
+
+    @Throws(SSLPeerUnverifiedException::class, CertificateException::class)
+    fun checkSessionCertificate(session: SSLSession, deviceId: DeviceId) {
         val certs = session.peerCertificates.toList()
         val certificateFactory = CertificateFactory.getInstance("X.509")
         val certPath = certificateFactory.generateCertPath(certs)
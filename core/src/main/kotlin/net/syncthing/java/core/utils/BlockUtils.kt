@@ -15,13 +15,45 @@ package net.syncthing.java.core.utils
 
 import net.syncthing.java.core.beans.BlockInfo
 import org.bouncycastle.util.encoders.Hex
+import java.nio.ByteBuffer
 import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
 
 object BlockUtils {
 
+    /**
+     * Smallest and largest block size chosen by syncthing, each a power of two.
+     */
+    const val MIN_BLOCK_SIZE = 128 * 1024
+    const val MAX_BLOCK_SIZE = 16 * 1024 * 1024
+
+    private val zeroBlockHashes = ConcurrentHashMap<Int, String>()
+
     fun hashBlocks(blocks: List<BlockInfo>): String {
         val string = blocks.joinToString(",") { it.hash }.toByteArray()
         val hash = MessageDigest.getInstance("SHA-256").digest(string)
         return Hex.toHexString(hash)
     }
+
+    /**
+     * Returns the hex encoded SHA-256 of the remaining bytes of [data], without consuming them.
+     */
+    fun hashBlock(data: ByteBuffer): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update(data.duplicate())
+        return Hex.toHexString(digest.digest())
+    }
+
+    /**
+     * Returns the hash of a block of [size] zero bytes.
+     */
+    fun zeroBlockHash(size: Int): String =
+            zeroBlockHashes[size] ?: hashBlock(ByteBuffer.allocate(size)).also { zeroBlockHashes[size] = it }
+
+    /**
+     * Returns true if [block] consists of zero bytes only. Only blocks of a standard block size are recognised, so
+     * the last block of a file is not hashed for every odd size, and a peer can not make us allocate a huge block.
+     */
+    fun isZeroBlock(block: BlockInfo) = block.size >= MIN_BLOCK_SIZE && block.size <= MAX_BLOCK_SIZE
+            && Integer.bitCount(block.size) == 1 && block.hash == zeroBlockHash(block.size)
 }
@@ -136,6 +136,18 @@ class SqlRepository(databaseFolder: File) : Closeable, IndexRepository, TempRepo
                     + "size BIGINT NOT NULL,"
                     + "blocks BINARY NOT NULL,"
                     + "PRIMARY KEY (folder, path))").use { prepareStatement -> prepareStatement.execute() }
+            connection.prepareStatement("CREATE TABLE block_location (local_path VARCHAR NOT NULL,"
+                    + "block_offset BIGINT NOT NULL,"
+                    + "size INT NOT NULL,"
+                    + "hash VARCHAR NOT NULL,"
+                    + "PRIMARY KEY (local_path, block_offset))").use { prepareStatement -> prepareStatement.execute() }
+            connection.prepareStatement("CREATE INDEX block_location_hash ON block_location (hash)").use { prepareStatement -> prepareStatement.execute() }
+            connection.prepareStatement("CREATE TABLE local_file_hashes (local_path VARCHAR NOT NULL PRIMARY KEY,"
+                    + "size BIGINT NOT NULL,"
+                    + "last_modified BIGINT NOT NULL,"
+                    + "block_size INT NOT NULL,"
+                    + "hash VARCHAR NOT NULL,"
+                    + "blocks BINARY NOT NULL)").use { prepareStatement -> prepareStatement.execute() }
             connection.prepareStatement("CREATE INDEX file_info_folder ON file_info (folder)").use { prepareStatement -> prepareStatement.execute() }
             connection.prepareStatement("CREATE INDEX file_info_folder_path ON file_info (folder, path)").use { prepareStatement -> prepareStatement.execute() }
             connection.prepareStatement("CREATE INDEX file_info_folder_parent ON file_info (folder, parent)").use { prepareStatement -> prepareStatement.execute() }
@@ -302,11 +314,26 @@ class SqlRepository(databaseFolder: File) : Closeable, IndexRepository, TempRepo
 
     @Throws(SQLException::class, InvalidProtocolBufferException::class)
     private fun readFileBlocks(resultSet: ResultSet): FileBlocks {
+        return FileBlocks(resultSet.getString("folder"), resultSet.getString("path"), readBlocks(resultSet))
+    }
+
+    @Throws(SQLException::class, InvalidProtocolBufferException::class)
+    private fun readBlocks(resultSet: ResultSet): List<BlockInfo> {
         val blocks = BlockExchangeExtraProtos.Blocks.parseFrom(resultSet.getBytes("blocks"))
-        val blockList = blocks.blocksList.map { record ->
+        return blocks.blocksList.map { record ->
             BlockInfo(record!!.offset, record.size, Hex.toHexString(record.hash.toByteArray()))
         }
-        return FileBlocks(resultSet.getString("folder"), resultSet.getString("path"), blockList)
+    }
+
+    private fun writeBlocks(blocks: List<BlockInfo>): ByteArray {
+        return BlockExchangeExtraProtos.Blocks.newBuilder()
+                .addAllBlocks(blocks.map { input ->
+                    BlockExchangeProtos.BlockInfo.newBuilder()
+                            .setOffset(input.offset)
+                            .setSize(input.size)
+                            .setHash(ByteString.copyFrom(Hex.decode(input.hash)))
+                            .build()
+                }).build().toByteArray()
     }
 
     @Throws(SQLException::class)
@@ -323,14 +350,7 @@ class SqlRepository(databaseFolder: File) : Closeable, IndexRepository, TempRepo
                     prepareStatement.setString(2, newFileBlocks.path)
                     prepareStatement.setString(3, newFileBlocks.hash)
                     prepareStatement.setLong(4, newFileBlocks.size)
-                    prepareStatement.setBytes(5, BlockExchangeExtraProtos.Blocks.newBuilder()
-                            .addAllBlocks(newFileBlocks.blocks.map { input ->
-                                BlockExchangeProtos.BlockInfo.newBuilder()
-                                        .setOffset(input.offset)
-                                        .setSize(input.size)
-                                        .setHash(ByteString.copyFrom(Hex.decode(input.hash)))
-                                        .build()
-                            }).build().toByteArray())
+                    prepareStatement.setBytes(5, writeBlocks(newFileBlocks.blocks))
                     prepareStatement.executeUpdate()
                 }
             }
@@ -451,6 +471,124 @@ class SqlRepository(databaseFolder: File) : Closeable, IndexRepository, TempRepo
         sequencer = IndexRepoSequencer()
     }
 
+    // BLOCK LOCATION - BEGIN
+    @Throws(SQLException::class)
+    override fun findBlockLocations(hash: String): List<BlockLocation> {
+        getConnection().use { connection ->
+            connection.prepareStatement("SELECT * FROM block_location WHERE hash=?").use { prepareStatement ->
+                prepareStatement.setString(1, hash)
+                val resultSet = prepareStatement.executeQuery()
+                val list = mutableListOf<BlockLocation>()
+                while (resultSet.next()) {
+                    list.add(readBlockLocation(resultSet))
+                }
+                return list
+            }
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun findBlockLocations(hashes: Collection<String>): List<BlockLocation> {
+        val list = mutableListOf<BlockLocation>()
+        getConnection().use { connection ->
+            for (chunk in hashes.toList().chunked(MAX_QUERY_PARAMETERS)) {
+                val parameters = chunk.joinToString(",") { "?" }
+                connection.prepareStatement("SELECT * FROM block_location WHERE hash IN ($parameters)").use { prepareStatement ->
+                    chunk.forEachIndexed { index, hash -> prepareStatement.setString(index + 1, hash) }
+                    val resultSet = prepareStatement.executeQuery()
+                    while (resultSet.next()) {
+                        list.add(readBlockLocation(resultSet))
+                    }
+                }
+            }
+        }
+        return list
+    }
+
+    @Throws(SQLException::class)
+    private fun readBlockLocation(resultSet: ResultSet) = BlockLocation(resultSet.getString("local_path"),
+            resultSet.getLong("block_offset"), resultSet.getInt("size"), resultSet.getString("hash"))
+
+    @Throws(SQLException::class)
+    override fun updateBlockLocations(localPath: String, blocks: List<BlockInfo>) {
+        getConnection().use { connection ->
+            connection.autoCommit = false
+            try {
+                doDeleteBlockLocations(connection, localPath)
+                connection.prepareStatement("INSERT INTO block_location"
+                        + " (local_path,block_offset,size,hash)"
+                        + " VALUES (?,?,?,?)").use { prepareStatement ->
+                    for (block in blocks) {
+                        prepareStatement.setString(1, localPath)
+                        prepareStatement.setLong(2, block.offset)
+                        prepareStatement.setInt(3, block.size)
+                        prepareStatement.setString(4, block.hash)
+                        prepareStatement.addBatch()
+                    }
+                    prepareStatement.executeBatch()
+                }
+                connection.commit()
+            } catch (ex: SQLException) {
+                connection.rollback()
+                throw ex
+            } finally {
+                connection.autoCommit = true
+            }
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun deleteBlockLocations(localPath: String) {
+        getConnection().use { connection -> doDeleteBlockLocations(connection, localPath) }
+    }
+
+    @Throws(SQLException::class)
+    private fun doDeleteBlockLocations(connection: Connection, localPath: String) {
+        connection.prepareStatement("DELETE FROM block_location WHERE local_path=?").use { prepareStatement ->
+            prepareStatement.setString(1, localPath)
+            prepareStatement.executeUpdate()
+        }
+    }
+    // BLOCK LOCATION - END
+
+    // LOCAL FILE HASHES - BEGIN
+    @Throws(SQLException::class, InvalidProtocolBufferException::class)
+    override fun findLocalFileHashes(localPath: String, size: Long, lastModified: Long): LocalFileHashes? {
+        getConnection().use { connection ->
+            connection.prepareStatement("SELECT * FROM local_file_hashes WHERE local_path=? AND size=? AND last_modified=?").use { prepareStatement ->
+                prepareStatement.setString(1, localPath)
+                prepareStatement.setLong(2, size)
+                prepareStatement.setLong(3, lastModified)
+                val resultSet = prepareStatement.executeQuery()
+                return if (resultSet.first()) {
+                    LocalFileHashes(resultSet.getString("local_path"), resultSet.getLong("size"),
+                            resultSet.getLong("last_modified"), resultSet.getInt("block_size"), readBlocks(resultSet),
+                            resultSet.getString("hash"))
+                } else {
+                    null
+                }
+            }
+        }
+    }
+
+    @Throws(SQLException::class)
+    override fun updateLocalFileHashes(localFileHashes: LocalFileHashes) {
+        getConnection().use { connection ->
+            connection.prepareStatement("MERGE INTO local_file_hashes"
+                    + " (local_path,size,last_modified,block_size,hash,blocks)"
+                    + " VALUES (?,?,?,?,?,?)").use { prepareStatement ->
+                prepareStatement.setString(1, localFileHashes.localPath)
+                prepareStatement.setLong(2, localFileHashes.size)
+                prepareStatement.setLong(3, localFileHashes.lastModified)
+                prepareStatement.setInt(4, localFileHashes.blockSize)
+                prepareStatement.setString(5, localFileHashes.hash)
+                prepareStatement.setBytes(6, writeBlocks(localFileHashes.blocks))
+                prepareStatement.executeUpdate()
+            }
+        }
+    }
+    // LOCAL FILE HASHES - END
+
     // FOLDER STATS - BEGIN
     @Throws(SQLException::class)
     private fun readFolderStats(resultSet: ResultSet): FolderStats {
@@ -663,18 +801,23 @@ class SqlRepository(databaseFolder: File) : Closeable, IndexRepository, TempRepo
         }
 
         @Throws(SQLException::class)
-        @Synchronized override fun nextSequence(): Long {
-            val nextSequence = currentSequence() + 1
+        @Synchronized override fun nextSequence(): Long = nextSequences(1)
+
+        @Throws(SQLException::class)
+        @Synchronized override fun nextSequences(count: Int): Long {
+            assert(count > 0)
+            val firstSequence = currentSequence() + 1
+            val lastSequence = currentSequence() + count
             getConnection().use { connection ->
                 connection.prepareStatement("UPDATE index_sequence SET current_sequence=?").use { statement ->
-                    statement.setLong(1, nextSequence)
+                    statement.setLong(1, lastSequence)
                     assert(statement.executeUpdate() == 1)
-                    logger.debug("update local index sequence to {}", nextSequence)
+                    logger.debug("update local index sequence to {}", lastSequence)
                 }
             }
 
-            currentSequence = nextSequence
-            return nextSequence
+            currentSequence = lastSequence
+            return firstSequence
         }
 
         @Synchronized override fun currentSequence(): Long {
@@ -699,6 +842,7 @@ class SqlRepository(databaseFolder: File) : Closeable, IndexRepository, TempRepo
     }
 
     companion object {
-        private const val VERSION = 13
+        private const val VERSION = 15
+        private const val MAX_QUERY_PARAMETERS = 500
     }
 }